@@ -0,0 +1,292 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// A bounded cache of the response records seen while resolving, keyed by
+// (name, type, class). Records that share a key are kept together as one set and the
+// set expires when the smallest TTL in it runs out. By default the sets are kept on the
+// heap in a StripedLruMap, so lookups of different names from different threads do not
+// contend, and when the cache is full a least recently used set is evicted. For very
+// large caches they can be kept off the heap in an OffHeapRecordStore instead.
+//
+// Sets that are asked for often can be refreshed before they expire: once a set has been
+// hit prefetchHits times and is in the last tenth of its TTL, the Refresher is asked to
+// look it up again. Expired sets can also be kept for a while and served stale
+// (RFC 8767), which asks the Refresher to replace them as well. Only one refresh of a set
+// runs at a time.
+
+public class AnswerCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final int STALE_TTL = 30;     // ttl given to stale records, as RFC 8767 suggests
+
+    private final Store entries;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile int prefetchHits = 0;      // 0 never prefetches
+    private volatile long maxStaleMs = 0;       // 0 never serves stale records
+    private volatile Refresher refresher = null;
+
+    // Looks a set up again in the background and puts the result in the cache
+    public interface Refresher {
+        void refresh(String name, String type);
+    }
+
+    static class Entry {
+        final List<ResponseRecord> records;
+        final long expires;         // absolute expiry time in ms
+        final long lifetime;        // ms between caching and expiry
+        final AtomicInteger hits;
+
+        Entry(List<ResponseRecord> records, long expires, long lifetime, int hits) {
+            this.records = records;
+            this.expires = expires;
+            this.lifetime = lifetime;
+            this.hits = new AtomicInteger(hits);
+        }
+    }
+
+    // Where the sets are kept. get counts a hit on the set it returns, and remove only
+    // removes the set if it is still the one given.
+    interface Store {
+        Entry get(String name, String type, int rClass);
+
+        void put(String name, String type, int rClass, Entry entry);
+
+        void remove(String name, String type, int rClass, Entry entry);
+
+        int size();
+
+        void forEach(Consumer<Entry> action);
+    }
+
+    // The sets as objects on the heap
+    private static class HeapStore implements Store {
+        final StripedLruMap<Entry> map;
+
+        HeapStore(int maxEntries) {
+            map = new StripedLruMap<Entry>(maxEntries);
+        }
+
+        public Entry get(String name, String type, int rClass) {
+            Entry entry = map.get(key(name, type, rClass));
+            if (entry != null) {
+                entry.hits.incrementAndGet();
+            }
+            return entry;
+        }
+
+        public void put(String name, String type, int rClass, Entry entry) {
+            map.put(key(name, type, rClass), entry);
+        }
+
+        public void remove(String name, String type, int rClass, Entry entry) {
+            map.remove(key(name, type, rClass), entry);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void forEach(Consumer<Entry> action) {
+            map.forEach((key, entry) -> action.accept(entry));
+        }
+    }
+
+    //A cache of at most maxEntries sets kept on the heap
+    public AnswerCache(int maxEntries) {
+        this.entries = new HeapStore(maxEntries);
+    }
+
+    //A cache that keeps its sets in store, for example an OffHeapRecordStore
+    AnswerCache(Store store) {
+        this.entries = store;
+    }
+
+    //Refresh sets hit at least hits times shortly before they expire, 0 turns this off
+    public void setPrefetch(int hits, Refresher refresher) {
+        this.refresher = refresher;
+        this.prefetchHits = hits;
+    }
+
+    //Keep expired sets for up to maxStaleSeconds so getStale can return them, 0 turns this off
+    public void setServeStale(long maxStaleSeconds, Refresher refresher) {
+        this.refresher = refresher;
+        this.maxStaleMs = maxStaleSeconds * 1000;
+    }
+
+    //Get the records cached for this name, type and class, or null if there are none that
+    //are still valid. The ttl of each returned record is the time it has left in the cache.
+    public List<ResponseRecord> get(String name, String type, int rClass) {
+        Entry entry = entries.get(name, type, rClass);
+        long now = System.currentTimeMillis();
+        if (entry == null || entry.expires <= now) {
+            if (entry != null && entry.expires + maxStaleMs <= now) {
+                entries.remove(name, type, rClass, entry);
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        int minHits = prefetchHits;
+        if (minHits > 0 && entry.hits.get() >= minHits && (entry.expires - now) * 10 < entry.lifetime) {
+            refresh(name, type, rClass);
+        }
+        return withTtl(entry.records, (int) ((entry.expires - now) / 1000));
+    }
+
+    //Get the records of a set that has expired but is within the staleness bound, with a ttl
+    //of STALE_TTL, or null if there are none. A refresh of the set is started if none is running.
+    public List<ResponseRecord> getStale(String name, String type, int rClass) {
+        Entry entry = entries.get(name, type, rClass);
+        long now = System.currentTimeMillis();
+        if (entry == null || entry.expires > now || entry.expires + maxStaleMs <= now) {
+            return null;
+        }
+        refresh(name, type, rClass);
+        return withTtl(entry.records, STALE_TTL);
+    }
+
+    //Allow another refresh of a set once one has finished, whether or not it found anything
+    public void refreshDone(String name, String type, int rClass) {
+        refreshing.remove(key(name, type, rClass));
+    }
+
+    private void refresh(String name, String type, int rClass) {
+        Refresher r = refresher;
+        if (r != null && refreshing.add(key(name, type, rClass))) {
+            r.refresh(name, type);
+        }
+    }
+
+    private static List<ResponseRecord> withTtl(List<ResponseRecord> records, int ttl) {
+        List<ResponseRecord> result = new ArrayList<ResponseRecord>(records.size());
+        for (ResponseRecord rr : records) {
+            result.add(rr.withTtl(ttl));
+        }
+        return result;
+    }
+
+    //Cache the records of a response that the servers that sent it, the servers of zone ("" for
+    //the root), have a say over: answers for names in zone, NS and SOA records of zone and the
+    //zones below it from the authority section, and the addresses in the additional section
+    //of the name servers named there, their glue. Anything else could be planted by any
+    //server to poison the cache for names it does not serve (RFC 2181, section 5.4.1).
+    public void put(DNSResponse response, String zone) {
+        List<ResponseRecord> records = new ArrayList<ResponseRecord>();
+        Set<String> nameServers = new HashSet<String>();
+        for (ResponseRecord rr : response.getAnswers()) {
+            if (ResponseRecord.isInZone(rr.getName(), zone)) {
+                records.add(rr);
+            }
+        }
+        // only the NS and SOA records of the other sections, and the glue for those NS
+        // records, are decoded
+        for (ResponseRecord rr : response.findRecords(DNSResponse.SECTION_AUTHORITY, null, DNSResponse.getTypeCode("SOA"))) {
+            if (ResponseRecord.isInZone(rr.getName(), zone)) {
+                records.add(rr);
+            }
+        }
+        for (ResponseRecord rr : response.findRecords(DNSResponse.SECTION_AUTHORITY, null, DNSResponse.getTypeCode("NS"))) {
+            if (ResponseRecord.isInZone(rr.getName(), zone)) {
+                records.add(rr);
+                nameServers.add(ResponseRecord.normalizeName(rr.getData()));
+            }
+        }
+        for (String ns : nameServers) {
+            if (ResponseRecord.isInZone(ns, zone)) {
+                records.addAll(response.findRecords(DNSResponse.SECTION_ADDITIONAL, ns, DNSResponse.getTypeCode("A")));
+                records.addAll(response.findRecords(DNSResponse.SECTION_ADDITIONAL, ns, DNSResponse.getTypeCode("AAAA")));
+            }
+        }
+        put(records);
+    }
+
+    //Cache a list of records. Records with the same key replace the set cached for that key.
+    public void put(List<ResponseRecord> records) {
+        Map<String, List<ResponseRecord>> sets = new LinkedHashMap<String, List<ResponseRecord>>();
+        for (ResponseRecord rr : records) {
+            if (rr.getType().equals("") || rr.getTtl() <= 0) {
+                continue;
+            }
+            String key = key(rr.getName(), rr.getType(), rr.getRClass());
+            List<ResponseRecord> set = sets.get(key);
+            if (set == null) {
+                set = new ArrayList<ResponseRecord>();
+                sets.put(key, set);
+            }
+            set.add(rr);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<ResponseRecord>> set : sets.entrySet()) {
+            int minTtl = Integer.MAX_VALUE;
+            for (ResponseRecord rr : set.getValue()) {
+                minTtl = Math.min(minTtl, rr.getTtl());
+            }
+            ResponseRecord first = set.getValue().get(0);
+            entries.put(first.getName(), first.getType(), first.getRClass(),
+                    new Entry(set.getValue(), now + minTtl * 1000L, minTtl * 1000L, 0));
+        }
+    }
+
+    //Write every set to a snapshot, see CacheSnapshot
+    void save(DataOutputStream out) throws IOException {
+        List<Entry> all = new ArrayList<Entry>();
+        entries.forEach(all::add);
+        out.writeInt(all.size());
+        for (Entry entry : all) {
+            out.writeLong(entry.expires);
+            out.writeLong(entry.lifetime);
+            out.writeShort(entry.records.size());
+            for (ResponseRecord rr : entry.records) {
+                CacheSnapshot.writeRecord(out, rr);
+            }
+        }
+    }
+
+    //Read the sets of a snapshot, keeping those that have not expired (or are within the
+    //staleness bound). Returns how many were kept.
+    int load(ByteBuffer in) {
+        long now = System.currentTimeMillis();
+        int count = in.getInt();
+        int loaded = 0;
+        for (int i = 0; i < count; i++) {
+            long expires = in.getLong();
+            long lifetime = in.getLong();
+            int n = in.getShort() & 0xffff;
+            List<ResponseRecord> records = new ArrayList<ResponseRecord>(n);
+            for (int j = 0; j < n; j++) {
+                records.add(CacheSnapshot.readRecord(in));
+            }
+            if (n > 0 && expires + maxStaleMs > now) {
+                ResponseRecord first = records.get(0);
+                entries.put(first.getName(), first.getType(), first.getRClass(),
+                        new Entry(records, expires, lifetime, 0));
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static String key(String name, String type, int rClass) {
+        return ResponseRecord.normalizeName(name) + "/" + type + "/" + rClass;
+    }
+}
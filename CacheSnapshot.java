@@ -0,0 +1,110 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+// Saves the answer, negative and delegation caches of a resolver to a file and loads them
+// back, so a restarted resolver starts warm. Expiry times are stored as absolute times,
+// so whatever has expired while the resolver was down is skipped on loading and the rest
+// keeps its remaining TTL. The file is written next to its final place and renamed over
+// it, so a crash while saving leaves the previous snapshot intact. It is loaded by
+// mapping it into memory and decoding it in one pass.
+//
+// The layout, all integers big endian:
+//
+//   int magic, int version, long time written
+//   answer sets:    int count, then per set: long expires, long lifetime, short n, n records
+//   negative cache: int count, then per entry: string key, byte rcode, long expires, record
+//   delegations:    int count, then per zone: string zone, long expires,
+//                   short n, n name server names, short m, m addresses
+//
+// where a string is a short length followed by that many bytes of UTF-8 and a record is
+// its name, type and data as strings followed by a short class and an int ttl.
+
+public class CacheSnapshot {
+    private static final int MAGIC = 0x444e5343;       // "DNSC"
+    private static final int VERSION = 1;
+
+    //Write the caches to file, replacing any earlier snapshot
+    public static void save(Path file, AnswerCache answers, NegativeCache negatives, DelegationCache delegations)
+            throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            answers.save(out);
+            negatives.save(out);
+            delegations.save(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //Load a snapshot into the caches, skipping expired entries. Returns the number of
+    //entries loaded, 0 if there is no snapshot. Throws IOException if the file is not a
+    //snapshot or is cut short; whatever was read before the damage is kept.
+    public static int load(Path file, AnswerCache answers, NegativeCache negatives, DelegationCache delegations)
+            throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 16 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException(file + " is not a cache snapshot");
+            }
+            in.getLong();       // when it was written
+            int loaded = answers.load(in);
+            loaded += negatives.load(in);
+            loaded += delegations.load(in);
+            return loaded;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(file + " is damaged", e);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeRecord(DataOutputStream out, ResponseRecord rr) throws IOException {
+        writeString(out, rr.getName());
+        writeString(out, rr.getType());
+        writeString(out, rr.getData());
+        out.writeShort(rr.getRClass());
+        out.writeInt(rr.getTtl());
+    }
+
+    static ResponseRecord readRecord(ByteBuffer in) {
+        String name = readString(in);
+        String type = readString(in);
+        String data = readString(in);
+        int rClass = in.getShort() & 0xffff;
+        int ttl = in.getInt();
+        return toRecord(name, type, data, rClass, ttl);
+    }
+
+    //Make a record from the text of its data, decoding the fields of an SOA record
+    static ResponseRecord toRecord(String name, String type, String data, int rClass, int ttl) {
+        if (type.equals("SOA")) {
+            String[] f = data.split(" ");
+            if (f.length != 7) {
+                throw new IllegalArgumentException("bad SOA record for " + name);
+            }
+            return new SOARecord(name, rClass, ttl, 0, f[0], f[1], Long.parseLong(f[2]), Long.parseLong(f[3]),
+                    Long.parseLong(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6]));
+        }
+        return new ResponseRecord(name, type, rClass, ttl, 0, data);
+    }
+}
@@ -0,0 +1,262 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Builds a DNS message in wire format. The header is written first, then the question
+// and then the records of each section in order. Names are compressed against every name
+// already written, except SRV targets, which must not be. Records are given as
+// ResponseRecords and their RDATA is encoded from the same text form that DNSResponse
+// decodes it into.
+
+public class DNSMessageWriter {
+    public static final int FLAG_QR = 0x8000;      // this is a response
+    public static final int FLAG_AA = 0x0400;      // authoritative answer
+    public static final int FLAG_TC = 0x0200;      // truncated
+    public static final int FLAG_RD = 0x0100;      // recursion desired
+    public static final int FLAG_RA = 0x0080;      // recursion available
+
+    private static final int OPT_LENGTH = 11;
+
+    private final ByteBuffer buf;
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+    private final int[] counts = new int[4];       // question, answer, authority, additional
+    private int section = 0;
+
+    public DNSMessageWriter(int maxSize) {
+        buf = ByteBuffer.allocate(maxSize);
+    }
+
+    //Write the header. flags holds the QR, opcode, AA, TC, RD, RA and RCODE bits.
+    public DNSMessageWriter header(int id, int flags) {
+        buf.clear();
+        buf.limit(buf.capacity());
+        names.clear();
+        Arrays.fill(counts, 0);
+        section = 0;
+        buf.putShort((short) id);
+        buf.putShort((short) flags);
+        buf.put(new byte[8]);   // counts are filled in by toByteArray
+        return this;
+    }
+
+    public DNSMessageWriter question(String name, int qtype, int qclass) {
+        putName(name);
+        buf.putShort((short) qtype);
+        buf.putShort((short) qclass);
+        counts[0]++;
+        return this;
+    }
+
+    //Add a record to a section (DNSResponse.SECTION_ANSWER and so on). Sections have to be
+    //written in order. Returns false, leaving the message as it was, if the record does not fit.
+    //Throws IllegalArgumentException, also leaving the message as it was, if its data cannot
+    //be encoded, such as an A record whose data is not an address.
+    public boolean record(int recordSection, ResponseRecord rr) {
+        if (recordSection + 1 < section) {
+            throw new IllegalStateException("sections must be written in order");
+        }
+        section = recordSection + 1;
+        int mark = buf.position();
+        Map<String, Integer> namesBefore = new HashMap<String, Integer>(names);
+        try {
+            putName(rr.getName());
+            buf.putShort((short) DNSResponse.getTypeCode(rr.getType()));
+            buf.putShort((short) rr.getRClass());
+            buf.putInt(rr.getTtl());
+            int lengthAt = buf.position();
+            buf.putShort((short) 0);
+            putData(rr);
+            buf.putShort(lengthAt, (short) (buf.position() - lengthAt - 2));
+        } catch (BufferOverflowException e) {
+            rollBack(mark, namesBefore);
+            return false;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // the data is not in the form DNSResponse decodes it into, e.g. missing SOA fields
+            rollBack(mark, namesBefore);
+            throw new IllegalArgumentException("cannot encode " + rr.getName() + " " + rr.getType()
+                    + " " + rr.getData(), e);
+        }
+        counts[section]++;
+        return true;
+    }
+
+    private void rollBack(int mark, Map<String, Integer> namesBefore) {
+        buf.position(mark);
+        names.clear();
+        names.putAll(namesBefore);
+    }
+
+    //Keep room for an OPT record at the end, so records added before it cannot crowd it out
+    public DNSMessageWriter reserveOpt() {
+        buf.limit(buf.capacity() - OPT_LENGTH);
+        return this;
+    }
+
+    //Add an EDNS0 OPT record offering payloadSize bytes of UDP payload to the additional
+    //section. Returns false, leaving the message as it was, if it does not fit.
+    public boolean opt(int payloadSize) {
+        if (section > 3) {
+            throw new IllegalStateException("sections must be written in order");
+        }
+        buf.limit(buf.capacity());
+        if (buf.remaining() < OPT_LENGTH) {
+            return false;
+        }
+        section = 3;
+        buf.put((byte) 0);
+        buf.putShort((short) 41);
+        buf.putShort((short) payloadSize);
+        buf.putInt(0);
+        buf.putShort((short) 0);
+        counts[3]++;
+        return true;
+    }
+
+    //Set flag bits in the header after the fact, for example TC once a record did not fit
+    public void setFlags(int flags) {
+        buf.putShort(2, (short) (buf.getShort(2) | flags));
+    }
+
+    public int size() {
+        return buf.position();
+    }
+
+    public byte[] toByteArray() {
+        for (int i = 0; i < 4; i++) {
+            buf.putShort(4 + 2 * i, (short) counts[i]);
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private void putData(ResponseRecord rr) {
+        String type = rr.getType();
+        String data = rr.getData();
+        if (type.equals("A") || type.equals("AAAA")) {
+            buf.put(parseAddress(data));
+        } else if (type.equals("NS") || type.equals("CN") || type.equals("PTR")) {
+            putName(data);
+        } else if (type.equals("SOA")) {
+            String[] fields = data.trim().split("\\s+");
+            putName(fields[0]);
+            putName(fields[1]);
+            for (int i = 2; i < 7; i++) {
+                buf.putInt((int) Long.parseLong(fields[i]));
+            }
+        } else if (type.equals("MX")) {
+            String[] fields = data.trim().split("\\s+");
+            buf.putShort((short) Integer.parseInt(fields[0]));
+            putName(fields[1]);
+        } else if (type.equals("SRV")) {
+            // the target of an SRV record must not be compressed (RFC 2782)
+            String[] fields = data.trim().split("\\s+");
+            for (int i = 0; i < 3; i++) {
+                buf.putShort((short) Integer.parseInt(fields[i]));
+            }
+            putName(fields[3], false);
+        } else if (type.equals("TXT")) {
+            putCharacterStrings(data);
+        } else if (data.startsWith("\\#")) {
+            putGenericData(data);
+        } else {
+            throw new IllegalArgumentException("cannot encode records of type " + type);
+        }
+    }
+
+    //Write TXT data given as character strings, quoted or not, with \" \\ and \DDD escapes
+    private void putCharacterStrings(String data) {
+        int i = 0;
+        while (i < data.length()) {
+            char c = data.charAt(i);
+            if (c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+            boolean quoted = c == '"';
+            if (quoted) {
+                i++;
+            }
+            int lengthAt = buf.position();
+            buf.put((byte) 0);
+            while (i < data.length()) {
+                c = data.charAt(i);
+                if (quoted ? c == '"' : c == ' ' || c == '\t') {
+                    i++;
+                    break;
+                }
+                if (c == '\\' && i + 1 < data.length()) {
+                    if (i + 3 < data.length() && Character.isDigit(data.charAt(i + 1))) {
+                        c = (char) Integer.parseInt(data.substring(i + 1, i + 4));
+                        i += 3;
+                    } else {
+                        c = data.charAt(++i);
+                    }
+                }
+                buf.put((byte) c);
+                i++;
+            }
+            int length = buf.position() - lengthAt - 1;
+            if (length > 255) {
+                throw new IllegalArgumentException("character string longer than 255 in " + data);
+            }
+            buf.put(lengthAt, (byte) length);
+        }
+    }
+
+    //Write RDATA given in the \# form of RFC 3597: length, then the bytes in hex
+    private void putGenericData(String data) {
+        String[] fields = data.trim().split("\\s+");
+        int length = Integer.parseInt(fields[1]);
+        String hex = String.join("", Arrays.copyOfRange(fields, 2, fields.length));
+        if (hex.length() != 2 * length) {
+            throw new IllegalArgumentException("length does not match data in " + data);
+        }
+        for (int i = 0; i < length; i++) {
+            buf.put((byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16));
+        }
+    }
+
+    private void putName(String name) {
+        putName(name, true);
+    }
+
+    //Write a name, pointing at an earlier copy of the longest suffix already in the message
+    //if compress is set. Either way it can be pointed at later.
+    private void putName(String name, boolean compress) {
+        String n = ResponseRecord.normalizeName(name);
+        while (n.length() > 0) {
+            Integer earlier = compress ? names.get(n.toLowerCase()) : null;
+            if (earlier != null) {
+                buf.putShort((short) (0xc000 | earlier));
+                return;
+            }
+            if (buf.position() < 0x3fff) {
+                names.put(n.toLowerCase(), buf.position());
+            }
+            int dot = n.indexOf('.');
+            String label = dot < 0 ? n : n.substring(0, dot);
+            if (label.length() == 0 || label.length() > 63) {
+                throw new IllegalArgumentException("bad label in " + name);
+            }
+            buf.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) {
+                buf.put((byte) label.charAt(i));
+            }
+            n = dot < 0 ? "" : n.substring(dot + 1);
+        }
+        buf.put((byte) 0);
+    }
+
+    static byte[] parseAddress(String literal) {
+        // only numeric addresses are accepted, so this never does a lookup
+        if (literal.indexOf(':') < 0 && !literal.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+            throw new IllegalArgumentException("not an address: " + literal);
+        }
+        try {
+            return InetAddress.getByName(literal).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("not an address: " + literal);
+        }
+    }
+}
@@ -1,149 +1,184 @@
-
 // Lots of the action associated with handling a DNS query is processing
-// the response. Although not required you might find the following skeleton of
-// a DNSreponse helpful. The class below has bunch of instance data that typically needs to be 
-// parsed from the response. If you decide to use this class keep in mind that it is just a 
-// suggestion and feel free to add or delete methods to better suit your implementation as 
-// well as instance variables.
+// the response. The response is parsed in place: the constructor (or parse) only walks
+// the packet once to check it and to remember where each response record starts.
+// Names, addresses and the rest of the RDATA are decoded when they are asked for, so a
+// response can be checked and matched to its query without allocating anything. One
+// DNSResponse object can be reused for many packets by calling parse again.
 
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
-import java.io.*;
 import java.util.*;
 
 public class DNSResponse {
-    private byte[] data;
+    public static final int SECTION_ANSWER = 0;
+    public static final int SECTION_AUTHORITY = 1;
+    public static final int SECTION_ADDITIONAL = 2;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_POINTER_JUMPS = 32;    // a name can never need more than this
+
+    private ByteBuffer data;                // the packet, from base up to end
+    private int base;
+    private int end;
     private int queryID;                    // this is for the response it must match the one in the request
-    private int answerCount = 0;            // number of answers
-    private int remainingAnswers = 0;       // number of asnwers remaining to be added to answerArray;
-    private List<ResponseRecord> answerArray = new LinkedList<ResponseRecord>();    //array of answer responses;
-    private boolean decoded = false;        // Was this response successfully decoded
-    private int nsCount = 0;                // number of nscount response records
-    private List<ResponseRecord> nsArray = new LinkedList<ResponseRecord>();       // array of NS response
-    private int additionalCount = 0;        // number of additional (alternate) response records
-    private List<ResponseRecord> additionalArray = new LinkedList<ResponseRecord>();   // array of additional response;
     private boolean authoritative = false;  // Is this an authoritative record
+    private boolean truncated = false;      // TC bit, the response did not fit in the packet
     private boolean RD = false;             // see if there is recursive record
     private boolean RA = false;             // see if it is capable of recursive queries
     private int rCode = 0;                  // record code
     private int qCount = 0;                 // number of queryCount response records
-    private String QName="";                // query name
-
-
-
-    // Note you will almost certainly need some additional instance variables.
-
-    // When in trace mode you probably want to dump out all the relevant information in a response
-
-    void dumpResponse() {
-
-
-
+    private int answerCount = 0;            // number of answers
+    private int nsCount = 0;                // number of nscount response records
+    private int additionalCount = 0;        // number of additional (alternate) response records
+    private int questionOffset;             // offset of the question name
+    private int questionType;
+    private int questionClass;
+    private boolean response = false;       // QR bit, false for a query
+    private int opcode = 0;
+
+    // for each response record, in the order they appear in the packet, the offset of its
+    // name followed by the offset of its type field
+    private int[] recordOffsets = new int[64];
+    private int recordCount = 0;
+
+    // decoded on demand
+    private ResponseRecord[] records = new ResponseRecord[32];
+    private String QName;                   // query name
+    private List<ResponseRecord> answerArray;
+    private List<ResponseRecord> nsArray;
+    private List<ResponseRecord> additionalArray;
+    private final StringBuilder nameBuilder = new StringBuilder(64);
+
+    //Create an empty response to be filled in with parse
+    public DNSResponse() {
     }
 
-    // The constructor: you may want to add additional parameters, but the two shown are 
-    // probably the minimum that you need.
-
+    //Parse a response held in the first len bytes of responseData. The array is not copied,
+    //so it must not be changed while this response is in use.
     public DNSResponse (byte[] responseData, int len) {
-        int offset;
-        this.data = new byte[len];
-        System.arraycopy(responseData, 0, data, 0, len);
+        parse(ByteBuffer.wrap(responseData, 0, len));
+    }
 
-        ByteBuffer byteBuffer;
-        byte targetByte;
+    //Parse the response between the position and the limit of packet, replacing whatever this
+    //object held before. Only the header is decoded and the record offsets indexed. Throws
+    //IllegalArgumentException if the packet is malformed.
+    public void parse(ByteBuffer packet) {
+        data = packet;
+        base = packet.position();
+        end = packet.limit();
+        recordCount = 0;
+        QName = null;
+        answerArray = null;
+        nsArray = null;
+        additionalArray = null;
+
+        if (end - base < HEADER_LENGTH) {
+            throw new IllegalArgumentException("response shorter than a DNS header");
+        }
 
-        // The following are probably some of the things
-        // you will need to do.
         // Extract the query ID
-        offset = 0;
-        byteBuffer = ByteBuffer.wrap(data, offset, 2);
-        queryID = byteBuffer.getShort() & 0xffff;
+        queryID = u16(0);
 
         // Make sure the message is a query response and determine
         // if it is an authoritative response or note
-        offset = 2;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data, offset, 1);
-        targetByte = byteBuffer.get();
+        byte targetByte = data.get(base + 2);
+        response = getBit(0, targetByte) != 0;
+        opcode = (targetByte >> 3) & 0x0f;
         authoritative = getBit(5, targetByte) != 0;
+        truncated = getBit(6, targetByte) != 0;
         RD = getBit(7, targetByte) != 0;
 
         //determine if it is RA
-        offset = 3;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data, offset, 1);
-        targetByte = byteBuffer.get();
-        RA = getBit(0,targetByte)!=0;
-        rCode = targetByte & (byte) Integer.parseInt("00001111", 2);
-
-        // determine query count
-        offset = 4;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data,offset,2);
-        qCount=byteBuffer.getShort();
-
-        // determine answer count
-        offset = 6;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data, offset, 2);
-        answerCount=byteBuffer.getShort();
-        remainingAnswers = answerCount;
-
-        // determine NS Count
-        offset = 8;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data, offset, 2);
-        nsCount=byteBuffer.getShort();
-
-        // determine additional record count
-        offset = 10;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data, offset, 2);
-        additionalCount=byteBuffer.getShort();
-
-        // Extract list of answers, name server, and additional information response
-        // records
-
-        // extract query name
-        offset = 12;
-        int qoff = 12;          // offset for Qname
-        byteBuffer.clear();
-        int remainingLength = data.length - offset;
-        byteBuffer = ByteBuffer.wrap(data, offset, remainingLength - 1);
-        QName = getQueryName(byteBuffer);
-        int queryLength = QName.length() + 6 ; //query length is the length of the query plus two byte, one each at the beginning and end
-
-        int newOffset = offset + queryLength;
-
-        //Keep reading the data until the end.
-        while (newOffset < data.length) {
-
-            ResponseRecord rr = createResponseRecord(byteBuffer, newOffset, qoff);
-            if(rr.getType().equals("NS") ||rr.getType().equals("SOA") ) {
-                nsArray.add(rr);
-            } else if (rr.getType() == "A" || rr.getType() == "AAAA" || rr.getType() == "CN") {
-                if (remainingAnswers > 0) {
-                    answerArray.add(rr);
-                    remainingAnswers--;
-                } else {
-                    additionalArray.add(rr);
-                }
+        targetByte = data.get(base + 3);
+        RA = getBit(0, targetByte) != 0;
+        rCode = targetByte & 0x0f;
+
+        qCount = u16(4);
+        answerCount = u16(6);
+        nsCount = u16(8);
+        additionalCount = u16(10);
+
+        // skip over the question, remembering where its name is
+        int offset = HEADER_LENGTH;
+        questionOffset = offset;
+        questionType = 0;
+        questionClass = 0;
+        for (int i = 0; i < qCount; i++) {
+            int nameEnd = skipName(offset);
+            checkLength(nameEnd, 4);
+            if (i == 0) {
+                // the question name is decoded without any further checks, so its pointers
+                // are followed here already
+                readName(offset, null);
+                questionType = u16(nameEnd);
+                questionClass = u16(nameEnd + 2);
             }
-            newOffset = newOffset + rr.getRecordLength();
+            offset = nameEnd + 4;
         }
 
+        // index the answer, name server and additional records
+        int total = answerCount + nsCount + additionalCount;
+        if (records.length < total) {
+            recordOffsets = new int[2 * total];
+            records = new ResponseRecord[total];
+        }
+        for (int i = 0; i < total; i++) {
+            int nameEnd = skipName(offset);
+            checkLength(nameEnd, 10);
+            int rdLength = u16(nameEnd + 8);
+            checkLength(nameEnd + 10, rdLength);
+            recordOffsets[2 * i] = offset;
+            recordOffsets[2 * i + 1] = nameEnd;
+            records[i] = null;
+            offset = nameEnd + 10 + rdLength;
+        }
+        recordCount = total;
     }
 
+    //Copy this response into one that owns its own packet, so the buffer it was parsed from
+    //can be reused. Only the packet and the record offsets are copied: the copy is not
+    //walked again and decodes its records when they are asked for, like this one.
+    public DNSResponse copy() {
+        byte[] packet = new byte[end - base];
+        ByteBuffer source = data.duplicate();
+        source.limit(end).position(base);
+        source.get(packet);
+        DNSResponse c = new DNSResponse();
+        c.data = ByteBuffer.wrap(packet);
+        c.base = 0;
+        c.end = packet.length;
+        c.queryID = queryID;
+        c.authoritative = authoritative;
+        c.truncated = truncated;
+        c.RD = RD;
+        c.RA = RA;
+        c.rCode = rCode;
+        c.qCount = qCount;
+        c.answerCount = answerCount;
+        c.nsCount = nsCount;
+        c.additionalCount = additionalCount;
+        c.questionOffset = questionOffset;
+        c.questionType = questionType;
+        c.questionClass = questionClass;
+        c.response = response;
+        c.opcode = opcode;
+        c.recordCount = recordCount;
+        c.recordOffsets = Arrays.copyOf(recordOffsets, 2 * recordCount);
+        c.records = new ResponseRecord[recordCount];
+        return c;
+    }
 
+    //Length of the packet this response was parsed from
+    public int getPacketLength() {
+        return end - base;
+    }
 
-
-    // You will probably want a methods to extract a compressed FQDN, IP address
-    // cname, authoritative DNS servers and other values like the query ID etc.
-
-
-    // You will also want methods to extract the response records and record
-    // the important values they are returning. Note that an IPV6 reponse record
-    // is of type 28. It probably wouldn't hurt to have a response record class to hold
-    // these records.
+    //Copy the packet this response was parsed from into out, at its position
+    public void getPacket(ByteBuffer out) {
+        ByteBuffer source = data.duplicate();
+        source.limit(end).position(base);
+        out.put(source);
+    }
 
     //Get the query id of this response
     public int getQueryID(){
@@ -157,62 +192,197 @@ public class DNSResponse {
         return (b >> position) & 1;
     }
 
-    //Get the name
-    public String getQueryName(ByteBuffer byteBuffer){
-        ByteArrayOutputStream queryBuffer = new ByteArrayOutputStream();
-        byte i = byteBuffer.get();                  // index in data
-        String domainName = "";
-        while(i!= (byte) Integer.parseInt("00", 2) && byteBuffer.hasRemaining()) {
-
-            byteBuffer.mark();
-            byte currentByte = byteBuffer.get();
-            if (isBytePointer(currentByte)) {
-                byteBuffer.reset();
-                int address = getPointerAddress(byteBuffer.getShort());
-                domainName = getName(address);
-                return queryBuffer.toString() + domainName;
-            } else {
-                queryBuffer.write(currentByte);
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    //QR bit, false when this message is a query
+    public boolean isResponse() {
+        return response;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public boolean isRecursionDesired() {
+        return RD;
+    }
+
+    public int getQuestionCount() {
+        return qCount;
+    }
+
+    public int getQuestionClass() {
+        return questionClass;
+    }
+
+    public int getRCode(){
+        return this.rCode;
+    }
+
+    public int getQuestionType() {
+        return questionType;
+    }
+
+    public String getQName() {
+        if (QName == null) {
+            QName = qCount > 0 ? getQueryName(questionOffset) : "";
+        }
+        return this.QName;
+    }
+
+    //Check whether the question is for name without decoding it. Names compare case insensitively.
+    public boolean questionMatches(String name) {
+        return qCount > 0 && nameMatches(questionOffset, name);
+    }
+
+    //Check whether the record at index is for name without decoding it
+    public boolean recordNameMatches(int index, String name) {
+        return nameMatches(recordOffsets[2 * index], name);
+    }
+
+    //Compare the name at offset with name, label by label and case insensitively, following
+    //compression pointers under the same rules as readName
+    private boolean nameMatches(int offset, String name) {
+        int nameLength = name.length();
+        if (nameLength > 0 && name.charAt(nameLength - 1) == '.') {
+            nameLength--;
+        }
+        int pos = offset;
+        int jumps = 0;
+        int i = 0;
+        while (true) {
+            checkLength(pos, 1);
+            int len = u8(pos);
+            if ((len & 0xc0) == 0xc0) {
+                checkLength(pos, 2);
+                int target = u16(pos) & 0x3fff;
+                if (target < HEADER_LENGTH || target >= pos || ++jumps > MAX_POINTER_JUMPS) {
+                    throw new IllegalArgumentException("bad compression pointer at " + pos);
+                }
+                pos = target;
+                continue;
+            } else if ((len & 0xc0) != 0) {
+                throw new IllegalArgumentException("bad label type at " + pos);
+            } else if (len == 0) {
+                return i >= nameLength;
             }
-            i--;
-            if (i == (byte) Integer.parseInt("00", 2)) {
-                byteBuffer.mark();
-                byte nextByte = byteBuffer.get();
-                if (nextByte == (byte) Integer.parseInt("00", 2) && !isBytePointer(nextByte)) {
-                    break;
-                } else if (isBytePointer(nextByte)){
-                    i = 1;
-                    queryBuffer.write('.');
-                    byteBuffer.reset();
-                } else {
-                    queryBuffer.write((byte) Integer.parseInt("00101110", 2));
-                    i = nextByte;
+            if (i > 0) {
+                if (i >= nameLength || name.charAt(i) != '.') {
+                    return false;
                 }
+                i++;
+            }
+            if (i + len > nameLength) {
+                return false;
             }
+            checkLength(pos + 1, len);
+            for (int k = 1; k <= len; k++) {
+                if (Character.toLowerCase((char) u8(pos + k)) != Character.toLowerCase(name.charAt(i++))) {
+                    return false;
+                }
+            }
+            pos += len + 1;
+        }
+    }
+
+    //Number of records in a section
+    public int getSectionCount(int section) {
+        int start = getSectionStart(section);
+        int size = section == SECTION_ANSWER ? answerCount : section == SECTION_AUTHORITY ? nsCount : additionalCount;
+        return Math.max(0, Math.min(size, recordCount - start));
+    }
+
+    //Index of the first record of a section
+    public int getSectionStart(int section) {
+        if (section == SECTION_ANSWER) {
+            return 0;
+        } else if (section == SECTION_AUTHORITY) {
+            return answerCount;
         }
+        return answerCount + nsCount;
+    }
 
-        return queryBuffer.toString();
+    public int getRecordCount() {
+        return recordCount;
     }
 
-    //Get the name, takes in a byte buffer and an int.
-    public String getName(ByteBuffer byteBuffer, int qoff){
-        int startAddr = getPointerAddress(byteBuffer.getShort());
-        String name = getName(startAddr);
-        return name;
+    public int getRecordType(int index) {
+        return u16(recordOffsets[2 * index + 1]);
     }
 
-    //Get the name, takes in an address
-    public String getName(int address) {
-        ByteBuffer tempBuffer;
-        int queryLength = data.length - address;
-        tempBuffer = ByteBuffer.wrap(data, address, queryLength);
-        return getQueryName(tempBuffer);
+    public int getRecordClass(int index) {
+        return u16(recordOffsets[2 * index + 1] + 2);
     }
 
-    //Get the type
-    public String getType(ByteBuffer byteBuffer){
+    public int getRecordTtl(int index) {
+        return data.getInt(base + recordOffsets[2 * index + 1] + 4);
+    }
+
+    public int getRecordDataOffset(int index) {
+        return recordOffsets[2 * index + 1] + 10;
+    }
+
+    public int getRecordDataLength(int index) {
+        return u16(recordOffsets[2 * index + 1] + 8);
+    }
+
+    public String getRecordName(int index) {
+        return getQueryName(recordOffsets[2 * index]);
+    }
+
+    //Get the name at offset, following compression pointers
+    public String getQueryName(int offset) {
+        nameBuilder.setLength(0);
+        readName(offset, nameBuilder);
+        return nameBuilder.toString();
+    }
+
+    //Follow the name at offset through its compression pointers, appending its labels to name
+    //unless that is null. Pointers have to point backwards and there may only be a few of
+    //them, so a malicious packet cannot loop, and every label has to be inside the packet.
+    private void readName(int offset, StringBuilder name) {
+        int pos = offset;
+        int jumps = 0;
+        while (true) {
+            checkLength(pos, 1);
+            int len = u8(pos);
+            if ((len & 0xc0) == 0xc0) {
+                checkLength(pos, 2);
+                int target = u16(pos) & 0x3fff;
+                if (target < HEADER_LENGTH || target >= pos || ++jumps > MAX_POINTER_JUMPS) {
+                    throw new IllegalArgumentException("bad compression pointer at " + pos);
+                }
+                pos = target;
+                continue;
+            } else if ((len & 0xc0) != 0) {
+                throw new IllegalArgumentException("bad label type at " + pos);
+            } else if (len == 0) {
+                break;
+            }
+            checkLength(pos + 1, len);
+            if (name != null) {
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                for (int k = 1; k <= len; k++) {
+                    name.append((char) u8(pos + k));
+                }
+            }
+            pos += len + 1;
+        }
+    }
+
+    //Get the type. Types without a name of their own are TYPEn as in RFC 3597. OPT and the
+    //query only types (128 to 255, such as ANY) are not record types and give "".
+    public static String getType(int type){
         String ns="";
-        switch(byteBuffer.getShort()){
+        switch(type){
             case 1:
                 ns= "A";
                 break;
@@ -228,149 +398,252 @@ public class DNSResponse {
             case 6:
                 ns="SOA";
                 break;
-            default: ns="";
+            case 12:
+                ns="PTR";
+                break;
+            case 15:
+                ns="MX";
+                break;
+            case 16:
+                ns="TXT";
+                break;
+            case 33:
+                ns="SRV";
+                break;
+            case 41:
+                ns="";
+                break;
+            default:
+                ns = type > 0 && type <= 0xffff && (type < 128 || type > 255) ? "TYPE" + type : "";
                 break;
         }
         return ns;
     }
 
-    //Get the ttl
-    public int getTTL(ByteBuffer byteBuffer){
-        return byteBuffer.getInt();
+    //Get the type code for a type name (CNAME is taken for CN), or -1 if it is not a type
+    public static int getTypeCode(String type) {
+        switch (type) {
+            case "A":
+                return 1;
+            case "AAAA":
+                return 28;
+            case "NS":
+                return 2;
+            case "CN":
+            case "CNAME":
+                return 5;
+            case "SOA":
+                return 6;
+            case "PTR":
+                return 12;
+            case "MX":
+                return 15;
+            case "TXT":
+                return 16;
+            case "SRV":
+                return 33;
+            default:
+                if (type.startsWith("TYPE")) {
+                    try {
+                        int code = Integer.parseInt(type.substring(4));
+                        return getType(code).equals(type) ? code : -1;
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+                return -1;
+        }
     }
 
-    //Check if this byte is a pointer
-    public boolean isBytePointer(byte b) {
-        int result = (int) (b & 0b11000000);
-        return result == 0b11000000;
+    //Get the IPV4 address
+    public String getHostIP4Address(int offset) {
+        nameBuilder.setLength(0);
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                nameBuilder.append('.');
+            }
+            nameBuilder.append(u8(offset + i));
+        }
+        return nameBuilder.toString();
     }
 
-    //Get the pointer address
-    public int getPointerAddress(short s) {
-        int result =(int) (s & 0b0011111111111111);
-        return result;
+    //Get the IPV6 address
+    public String getHostIP6Address(int offset){
+        nameBuilder.setLength(0);
+        for (int i = 0; i < 16; i += 2) {
+            if (i > 0) {
+                nameBuilder.append(':');
+            }
+            nameBuilder.append(Integer.toHexString(u16(offset + i)));
+        }
+        return nameBuilder.toString();
     }
 
-    //Get the IPV4 address
-    public String getHostIP4Address(ByteBuffer byteBuffer) {
+    //Get the response record at index, decoding it the first time it is asked for
+    public ResponseRecord getRecord(int index) {
+        if (records[index] == null) {
+            records[index] = createResponseRecord(index);
+        }
+        return records[index];
+    }
+
+    //Create a response record
+    public ResponseRecord createResponseRecord(int index) {
+        String name = getRecordName(index);
+        int offset = recordOffsets[2 * index + 1];
+        String type = getType(u16(offset));
+        int rClass = u16(offset + 2);
+        int ttl = data.getInt(base + offset + 4);
+        int length = u16(offset + 8);
+        offset += 10;
 
-        String address = "";
-        byte currentByte = 0;
-        while(byteBuffer.hasRemaining()) {
-            currentByte = byteBuffer.get();
-            address = address + new String(Integer.toString(currentByte & 0xff));
-            address = address + ".";
+        String stringData = "";
+        if (type.equals("NS") || type.equals("CN") || type.equals("PTR")) {
+            stringData = getQueryName(offset);
+        } else if (type.equals("MX")) {
+            checkLength(offset, 3);
+            stringData = u16(offset) + " " + getQueryName(offset + 2);
+        } else if (type.equals("SRV")) {
+            checkLength(offset, 7);
+            stringData = u16(offset) + " " + u16(offset + 2) + " " + u16(offset + 4) + " " + getQueryName(offset + 6);
+        } else if (type.equals("TXT")) {
+            stringData = getCharacterStrings(offset, length);
+        } else if (type.equals("A") && length == 4) {
+            stringData = getHostIP4Address(offset);
+        } else if (type.equals("AAAA") && length == 16) {
+            stringData = getHostIP6Address(offset);
+        } else if (type.equals("SOA")) {
+            String mName = getQueryName(offset);
+            offset = skipName(offset);
+            String rName = getQueryName(offset);
+            offset = skipName(offset);
+            checkLength(offset, 20);
+            return new SOARecord(name, rClass, ttl, length, mName, rName, u32(offset), u32(offset + 4),
+                    u32(offset + 8), u32(offset + 12), u32(offset + 16));
+        } else if (!type.equals("A") && !type.equals("AAAA")) {
+            stringData = getGenericData(offset, length);
         }
-        address = address.substring(0, address.length() - 1);
-        return address;
+        return new ResponseRecord(name, type, rClass, ttl, length, stringData);
     }
 
-    //Get the IPV6 address
-    public String getHostIP6Address(ByteBuffer byteBuffer){
-        String address ="";
-        int val = 0;
-        while(byteBuffer.hasRemaining()) {
-            val = byteBuffer.getShort() & 0xffff;
-            address = address + Integer.toHexString(val);
-            address = address + ":";
+    //The character strings of a TXT record, each quoted, with quotes, backslashes and
+    //unprintable bytes escaped as in master files
+    private String getCharacterStrings(int offset, int length) {
+        nameBuilder.setLength(0);
+        int pos = offset;
+        while (pos < offset + length) {
+            int len = u8(pos);
+            checkLength(pos + 1, len);
+            if (nameBuilder.length() > 0) {
+                nameBuilder.append(' ');
+            }
+            nameBuilder.append('"');
+            for (int k = 1; k <= len; k++) {
+                int c = u8(pos + k);
+                if (c == '"' || c == '\\') {
+                    nameBuilder.append('\\').append((char) c);
+                } else if (c < 0x20 || c > 0x7e) {
+                    nameBuilder.append('\\').append(String.format("%03d", c));
+                } else {
+                    nameBuilder.append((char) c);
+                }
+            }
+            nameBuilder.append('"');
+            pos += len + 1;
         }
-        return address.substring(0,address.length()-2);
+        return nameBuilder.toString();
     }
 
+    //RDATA of a type we do not decode, in the \# form of RFC 3597: length, then the bytes in hex
+    private String getGenericData(int offset, int length) {
+        nameBuilder.setLength(0);
+        nameBuilder.append("\\# ").append(length);
+        if (length > 0) {
+            nameBuilder.append(' ');
+        }
+        for (int i = 0; i < length; i++) {
+            nameBuilder.append(Character.forDigit(u8(offset + i) >> 4, 16)).append(Character.forDigit(u8(offset + i) & 15, 16));
+        }
+        return nameBuilder.toString();
+    }
 
+    public List<ResponseRecord> getAnswers() {
+        if (answerArray == null) {
+            answerArray = getSection(SECTION_ANSWER);
+        }
+        return this.answerArray;
+    }
 
-    //Create a response record
-    public ResponseRecord createResponseRecord(ByteBuffer byteBuffer, int offset, int qoff) {
-        // extract authoritative nameserver
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data, offset, 2);
-        String name = getName(byteBuffer, qoff);
-
-        // extract server Type
-        offset+=2;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data, offset, 2);
-        String type = getType(byteBuffer);
-
-        // extract TTL
-        offset+=4;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data,offset,4);
-        int ttl = getTTL(byteBuffer);
-
-        // extract length
-        offset+=4;
-        byteBuffer.clear();
-        byteBuffer = ByteBuffer.wrap(data,offset,2);
-        int length = byteBuffer.getShort();
+    public List<ResponseRecord> getNameServers() {
+        if (nsArray == null) {
+            nsArray = getSection(SECTION_AUTHORITY);
+        }
+        return this.nsArray;
+    }
 
-        String stringData = "";
-        if (type == "NS") {
-            offset+=2;
-            byteBuffer.clear();
-            byteBuffer = ByteBuffer.wrap(data,offset,length);
-            byte b = data[offset];
-            stringData = getQueryName(byteBuffer);
-        } else if (type =="A") {
-            offset+=2;
-            byteBuffer.clear();
-            byteBuffer = ByteBuffer.wrap(data,offset,length);
-            byte b = data[offset];
-            stringData = getHostIP4Address(byteBuffer);
-        } else if (type == "AAAA") {
-            offset+=2;
-            byteBuffer.clear();
-            byteBuffer = ByteBuffer.wrap(data,offset,length);
-            byte b = data[offset];
-            stringData = getHostIP6Address(byteBuffer);
-        } else if (type == "CN"){
-            offset+=2;
-            byteBuffer.clear();
-            byteBuffer = ByteBuffer.wrap(data,offset,length);
-            byte b = data[offset];
-            stringData = getQueryName(byteBuffer);
-        } else if (type == "SOA") {
-            offset+=2;
-            byteBuffer.clear();
-            byteBuffer = ByteBuffer.wrap(data,offset,length);
-            byte b = data[offset];
-            stringData = "----";
-        }
-        ResponseRecord rr = new ResponseRecord(name, type, ttl, length, stringData );
-        return rr;
+    public List<ResponseRecord> getAdditional() {
+        if (additionalArray == null) {
+            additionalArray = getSection(SECTION_ADDITIONAL);
+        }
+        return this.additionalArray;
+    }
+
+    //Decode the records of a section that have the type code type and, unless name is null,
+    //the owner name name. The other records of the section are not decoded.
+    public List<ResponseRecord> findRecords(int section, String name, int type) {
+        int start = getSectionStart(section);
+        int count = getSectionCount(section);
+        List<ResponseRecord> found = new ArrayList<ResponseRecord>();
+        for (int i = start; i < start + count; i++) {
+            if (getRecordType(i) == type && (name == null || recordNameMatches(i, name))) {
+                found.add(getRecord(i));
+            }
+        }
+        return found;
+    }
+
+    //The UDP payload size offered in the OPT record of the additional section (RFC 6891), or 0
+    //if the message has none
+    public int getUdpPayloadSize() {
+        int start = getSectionStart(SECTION_ADDITIONAL);
+        for (int i = start; i < start + getSectionCount(SECTION_ADDITIONAL); i++) {
+            if (getRecordType(i) == 41) {
+                return getRecordClass(i);
+            }
+        }
+        return 0;
+    }
+
+    //Get the SOA record from the authority section, which negative answers carry
+    public SOARecord getSOA() {
+        int start = getSectionStart(SECTION_AUTHORITY);
+        for (int i = start; i < start + getSectionCount(SECTION_AUTHORITY); i++) {
+            if (getRecordType(i) == 6) {
+                return (SOARecord) getRecord(i);
+            }
+        }
+        return null;
     }
 
     //Print out this response
     public void printDNSResponse(){
-        System.out.println("Response ID: "+ queryID + " Authoritative " + authoritative);
-        System.out.println("  Answers ("+answerCount+")");
-        for (int i=0;i<answerCount;i++){
-            System.out.format("       %-30s %-10d %-4s %s\n", answerArray.get(i).getName(),
-                    answerArray.get(i).getTtl(),
-                    answerArray.get(i).getType(),
-                    answerArray.get(i).getData());
-        }
-        System.out.println("  Nameservers ("+nsCount+")");
-        for (int i=0;i<nsArray.size();i++){
-            if(nsArray.get(i).getType().equals("SOA")){
-                System.out.format("       %-30s %-10d %-4s %s\n", nsArray.get(i).getName(),
-                        nsArray.get(i).getTtl(),
-                        "6",
-                        nsArray.get(i).getData());
-            } else{
-                System.out.format("       %-30s %-10d %-4s %s\n", nsArray.get(i).getName(),
-                        nsArray.get(i).getTtl(),
-                        nsArray.get(i).getType(),
-                        nsArray.get(i).getData());
-            }
+        printDNSResponse(System.out);
+    }
 
+    public void printDNSResponse(PrintStream out) {
+        out.println("Response ID: "+ queryID + " Authoritative " + authoritative);
+        out.println("  Answers ("+answerCount+")");
+        for (ResponseRecord rr : getAnswers()) {
+            out.format("       %-30s %-10d %-4s %s\n", rr.getName(), rr.getTtl(), rr.getType(), rr.getData());
         }
-        System.out.println("  Additional Information ("+additionalCount+")");
-        for (int i=0;i<additionalArray.size();i++){
-            System.out.format("       %-30s %-10d %-4s %s\n", additionalArray.get(i).getName(),
-                    additionalArray.get(i).getTtl(),
-                    additionalArray.get(i).getType(),
-                    additionalArray.get(i).getData());
+        out.println("  Nameservers ("+nsCount+")");
+        for (ResponseRecord rr : getNameServers()) {
+            out.format("       %-30s %-10d %-4s %s\n", rr.getName(), rr.getTtl(),
+                    rr.getType().equals("SOA") ? "6" : rr.getType(), rr.getData());
+        }
+        out.println("  Additional Information ("+additionalCount+")");
+        for (ResponseRecord rr : getAdditional()) {
+            out.format("       %-30s %-10d %-4s %s\n", rr.getName(), rr.getTtl(), rr.getType(), rr.getData());
         }
     }
 
@@ -379,33 +652,31 @@ public class DNSResponse {
         //if we have a list of answers, we check the first answer.
         //If the first answer is not of type A, then we have to look up the first answer
         ResponseRecord tempTarget;
-        if (answerCount > 0) {
-            tempTarget = answerArray.get(0);
+        if (!getAnswers().isEmpty()) {
+            tempTarget = getAnswers().get(0);
             tempTarget.isAnswer = true;
             return tempTarget;
             //if we don't have an answer, we go to the first additional record, and look it up.
-        } else if (additionalCount > 0) {
-            target = additionalArray.get(0);
+        } else if (!getAdditional().isEmpty()) {
+            target = getAdditional().get(0);
             //if we don't have any additional record, go to name server array
-        } else if (nsCount > 0) {
-            tempTarget = nsArray.get(0);
+        } else if (!getNameServers().isEmpty()) {
+            tempTarget = getNameServers().get(0);
             if (tempTarget.getType().equals("SOA")) {
                 target = null;
             }else{
                 target=tempTarget;
             }
-        } else {
-            //TODO
         }
 
         return target;
     }
 
     public ResponseRecord getFirstAnswer() {
-        if(this.answerCount>0){
-            return this.answerArray.get(0);
+        if(!getAnswers().isEmpty()){
+            return getAnswers().get(0);
         } else {
-            return this.nsArray.get(0);
+            return getNameServers().get(0);
         }
 
     }
@@ -414,15 +685,52 @@ public class DNSResponse {
         return this.additionalCount;
     }
 
-    public int getRCode(){
-        return this.rCode;
+    //Decode the records of a section that have a type we understand
+    private List<ResponseRecord> getSection(int section) {
+        int start = getSectionStart(section);
+        int count = getSectionCount(section);
+        List<ResponseRecord> list = new ArrayList<ResponseRecord>(count);
+        for (int i = start; i < start + count; i++) {
+            if (getType(getRecordType(i)).length() > 0) {
+                list.add(getRecord(i));
+            }
+        }
+        return list;
     }
-}
-
-
-
 
+    //Get the offset just past the name at offset, without following compression pointers
+    private int skipName(int offset) {
+        int pos = offset;
+        while (true) {
+            checkLength(pos, 1);
+            int len = u8(pos);
+            if ((len & 0xc0) == 0xc0) {
+                checkLength(pos, 2);
+                return pos + 2;
+            } else if ((len & 0xc0) != 0) {
+                throw new IllegalArgumentException("bad label type at " + pos);
+            } else if (len == 0) {
+                return pos + 1;
+            }
+            pos += len + 1;
+        }
+    }
 
+    private void checkLength(int offset, int length) {
+        if (base + offset + length > end) {
+            throw new IllegalArgumentException("response truncated at " + offset);
+        }
+    }
 
+    private int u8(int offset) {
+        return data.get(base + offset) & 0xff;
+    }
 
+    private int u16(int offset) {
+        return data.getShort(base + offset) & 0xffff;
+    }
 
+    private long u32(int offset) {
+        return data.getInt(base + offset) & 0xffffffffL;
+    }
+}
@@ -0,0 +1,318 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Queries over TCP, for responses too big for UDP. As RFC 7766 recommends, there is one
+// connection per server, kept open while it is in use and for IDLE_TIMEOUT_MS after, and
+// queries are pipelined on it: each is written as soon as it is asked for, without
+// waiting for the response to the one before, and responses are matched to queries by ID
+// in whatever order they come back. Every connection is served by one selector thread,
+// which alone touches the connections, so other threads hand it their queries as tasks.
+// When a server closes a connection with queries still on it (servers close idle ones)
+// those queries are sent once more on a new connection. Query IDs come from a
+// SecureRandom, as they do in DNSTransport.
+
+public class DNSTcpPool implements Closeable {
+    static final long IDLE_TIMEOUT_MS = 10 * 1000;
+    private static final int MAX_ATTEMPTS = 2;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Map<InetSocketAddress, Connection> connections = new HashMap<InetSocketAddress, Connection>();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final SecureRandom rnd = new SecureRandom();
+    private volatile boolean closed = false;
+
+    private static class TcpQuery {
+        final InetSocketAddress server;
+        final String qName;
+        final int qType;
+        final CompletableFuture<DNSResponse> future = new CompletableFuture<DNSResponse>();
+        Connection connection;
+        int id;
+        int attempts = 0;
+
+        TcpQuery(InetSocketAddress server, String qName, int qType) {
+            this.server = server;
+            this.qName = qName;
+            this.qType = qType;
+        }
+    }
+
+    // A connection to one server and the queries waiting on it
+    private static class Connection {
+        final InetSocketAddress server;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Map<Integer, TcpQuery> waiting = new HashMap<Integer, TcpQuery>();
+        final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+        final ByteBuffer in = ByteBuffer.allocate(2 + 65535);
+        boolean connected = false;
+        long lastUsed = System.currentTimeMillis();
+
+        Connection(InetSocketAddress server, SocketChannel channel, SelectionKey key) {
+            this.server = server;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void updateInterest() {
+            if (connected) {
+                key.interestOps(SelectionKey.OP_READ | (writes.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            }
+        }
+    }
+
+    public DNSTcpPool() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "dns-tcp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Send a query for records of type qtype for fqdn to a server over TCP. Cancelling the
+    //returned future forgets the query, the connection stays open for the others.
+    public CompletableFuture<DNSResponse> query(InetSocketAddress server, String fqdn, int qtype) {
+        TcpQuery query = new TcpQuery(server, ResponseRecord.normalizeName(fqdn), qtype);
+        queries.increment();
+        query.future.whenComplete((res, err) -> {
+            if (query.future.isCancelled()) {
+                submit(() -> forget(query));
+            }
+        });
+        submit(() -> start(query));
+        return query.future;
+    }
+
+    //Queries sent over TCP
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    //Connections opened; far fewer than queries while connections are being reused
+    public long getConnectionCount() {
+        return opened.sum();
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    //Put a query on the connection to its server, opening one if there is none
+    private void start(TcpQuery query) {
+        if (query.future.isDone()) {
+            return;
+        }
+        if (closed) {
+            query.future.completeExceptionally(new IOException("transport is closed"));
+            return;
+        }
+        query.attempts++;
+        Connection c = connections.get(query.server);
+        try {
+            if (c == null) {
+                c = open(query.server);
+            }
+        } catch (IOException e) {
+            query.future.completeExceptionally(e);
+            return;
+        }
+        if (c.waiting.size() >= 0x10000) {
+            query.future.completeExceptionally(new IOException("too many queries on connection to " + query.server));
+            return;
+        }
+        do {
+            query.id = rnd.nextInt(0x10000);
+        } while (c.waiting.containsKey(query.id));
+        byte[] packet = DNSTransport.encodeNewQuery(query.id, query.qName, query.qType).toByteArray();
+        ByteBuffer framed = ByteBuffer.allocate(2 + packet.length);
+        framed.putShort((short) packet.length).put(packet).flip();
+        query.connection = c;
+        c.waiting.put(query.id, query);
+        c.writes.add(framed);
+        c.lastUsed = System.currentTimeMillis();
+        c.updateInterest();
+    }
+
+    private void forget(TcpQuery query) {
+        if (query.connection != null) {
+            query.connection.waiting.remove(query.id, query);
+        }
+    }
+
+    private Connection open(InetSocketAddress server) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(server);
+            SelectionKey key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+            Connection c = new Connection(server, channel, key);
+            c.connected = connected;
+            key.attach(c);
+            connections.put(server, c);
+            opened.increment();
+            return c;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void run() {
+        DNSResponse parser = new DNSResponse();
+        long lastSweep = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                Connection c = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    continue;       // closed by one of the tasks
+                }
+                try {
+                    if (key.isConnectable() && c.channel.finishConnect()) {
+                        c.connected = true;
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(c);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(c, parser);
+                    }
+                    if (key.isValid()) {
+                        c.updateInterest();
+                    }
+                } catch (IOException e) {
+                    lost(c, e);
+                }
+            }
+            selector.selectedKeys().clear();
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= 1000) {
+                lastSweep = now;
+                closeIdle(now);
+            }
+        }
+        // fail whatever is left
+        IOException gone = new IOException("transport is closed");
+        for (Connection c : new ArrayList<Connection>(connections.values())) {
+            lost(c, gone);
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void write(Connection c) throws IOException {
+        while (!c.writes.isEmpty()) {
+            ByteBuffer next = c.writes.peek();
+            c.channel.write(next);
+            if (next.hasRemaining()) {
+                return;     // the socket buffer is full, carry on when it drains
+            }
+            c.writes.poll();
+        }
+    }
+
+    //Read what has arrived and hand out every complete response in it
+    private void read(Connection c, DNSResponse parser) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            throw new IOException("connection closed by " + c.server);
+        }
+        c.in.flip();
+        while (c.in.remaining() >= 2) {
+            int length = c.in.getShort(c.in.position()) & 0xffff;
+            if (c.in.remaining() < 2 + length) {
+                break;
+            }
+            ByteBuffer message = c.in.duplicate();
+            message.position(c.in.position() + 2).limit(c.in.position() + 2 + length);
+            c.in.position(c.in.position() + 2 + length);
+            dispatch(c, message, parser);
+        }
+        c.in.compact();
+        c.lastUsed = System.currentTimeMillis();
+    }
+
+    private void dispatch(Connection c, ByteBuffer message, DNSResponse parser) {
+        if (message.remaining() < 12) {
+            return;
+        }
+        TcpQuery query = c.waiting.get(message.getShort(message.position()) & 0xffff);
+        if (query == null) {
+            return;
+        }
+        try {
+            parser.parse(message);
+        } catch (RuntimeException e) {
+            return;
+        }
+        if (!parser.questionMatches(query.qName) || parser.getQuestionType() != query.qType) {
+            return;
+        }
+        c.waiting.remove(query.id);
+        query.future.complete(parser.copy());
+    }
+
+    //Close a connection that failed or was closed by the server, and send its queries again
+    //on a new one unless they have been tried enough
+    private void lost(Connection c, IOException e) {
+        if (connections.get(c.server) == c) {
+            connections.remove(c.server);
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        for (TcpQuery query : c.waiting.values()) {
+            if (query.attempts < MAX_ATTEMPTS && !closed) {
+                start(query);
+            } else {
+                query.future.completeExceptionally(e);
+            }
+        }
+        c.waiting.clear();
+    }
+
+    private void closeIdle(long now) {
+        for (Connection c : new ArrayList<Connection>(connections.values())) {
+            if (c.waiting.isEmpty() && now - c.lastUsed >= IDLE_TIMEOUT_MS) {
+                lost(c, new IOException("idle"));
+            }
+        }
+    }
+}
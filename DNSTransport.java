@@ -0,0 +1,410 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Queries go out over a small pool of non-blocking DatagramChannels that stay open for the
+// life of the transport, so no socket is set up per query. Each channel is bound to its
+// own ephemeral port, and every query picks its channel and its ID from a SecureRandom, so
+// someone spoofing responses has to guess the port as well as an ID they cannot predict
+// from the ones they have seen. A single receiver thread waits on a selector over all the
+// channels and hands each response to the query it belongs to. A response is only accepted
+// if it arrives on the channel its query went out on and its query ID, the address it came
+// from and its question all match an outstanding query; anything else is dropped.
+// Outstanding queries are kept by channel and ID, so up to 65536 of them can share each
+// channel. Identical queries are coalesced: a query for the same name and type to the same
+// server as one still in flight sends nothing and waits for that query's response instead,
+// so a burst of lookups for one name costs one packet per hop. Queries sent with
+// queryForReferral coalesce across types as well, since a server that only refers the
+// resolver onwards gives the same referral whatever type is asked for.
+//
+// Queries carry an EDNS0 OPT record (RFC 6891) offering the servers a UDP payload bigger
+// than 512 bytes, DEFAULT_EDNS_PAYLOAD unless told otherwise. A response that still comes
+// back truncated is asked for again over TCP through a DNSTcpPool, and the TCP response
+// completes the query; if that fails the truncated response is used as it is.
+
+public class DNSTransport implements Closeable {
+    public static final int DNS_PORT = 53;
+    public static final int DEFAULT_EDNS_PAYLOAD = 1232;     // fits the usual MTU without fragments
+    private static final int MAX_PACKET_SIZE = 65535;
+    private static final int TYPE_OPT = 41;
+    static final int CHANNELS = 8;          // source ports queries are spread over
+    private static final int MAX_ID_TRIES = 32;     // random picks of a free channel and ID before giving up
+
+    private final DatagramChannel[] channels = new DatagramChannel[CHANNELS];
+    private final Selector selector;
+    private final Thread receiver;
+    private final DNSTcpPool tcp;
+    private final int ednsPayload;
+    // outstanding queries by channel and ID, see PendingQuery.key
+    private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<Integer, PendingQuery>();
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+    private final LongAdder coalesced = new LongAdder();
+    private final SecureRandom rnd = new SecureRandom();
+    private volatile boolean closed = false;
+
+    private static class PendingQuery {
+        final int id;
+        final int channel;          // index into channels
+        final InetSocketAddress server;
+        final String qName;
+        final int qType;
+        final CompletableFuture<DNSResponse> future = new CompletableFuture<DNSResponse>();
+
+        PendingQuery(int id, int channel, InetSocketAddress server, String qName, int qType) {
+            this.id = id;
+            this.channel = channel;
+            this.server = server;
+            this.qName = qName;
+            this.qType = qType;
+        }
+
+        //Where it is kept in pending: the same ID may be in use on every channel at once
+        int key() {
+            return key(channel, id);
+        }
+
+        static int key(int channel, int id) {
+            return channel << 16 | id;
+        }
+    }
+
+    // A query sent on the wire and everyone waiting for its response. Each waiter gets a
+    // future of its own, so one giving up does not cancel the query for the others, and
+    // its own copy of the response, since a DNSResponse is not safe to share between threads.
+    // The query is cancelled once every waiter has given up.
+    private static class Flight {
+        final CompletableFuture<DNSResponse> source;
+        int waiters = 0;
+        boolean closed = false;     // done or abandoned, no one may join any more
+
+        Flight(CompletableFuture<DNSResponse> source) {
+            this.source = source;
+        }
+
+        //A future for one more waiter, or null if the query is already over
+        synchronized CompletableFuture<DNSResponse> join() {
+            if (closed || source.isDone()) {
+                return null;
+            }
+            final boolean first = waiters++ == 0;
+            CompletableFuture<DNSResponse> mine = new CompletableFuture<DNSResponse>();
+            source.whenComplete((res, err) -> {
+                if (err != null) {
+                    mine.completeExceptionally(err);
+                } else {
+                    mine.complete(first ? res : res.copy());
+                }
+            });
+            mine.whenComplete((res, err) -> {
+                if (mine.isCancelled()) {
+                    leave();
+                }
+            });
+            return mine;
+        }
+
+        synchronized void leave() {
+            if (--waiters == 0) {
+                closed = true;
+                source.cancel(false);
+            }
+        }
+    }
+
+    public DNSTransport() throws IOException {
+        this(DEFAULT_EDNS_PAYLOAD);
+    }
+
+    //A transport offering servers ednsPayload bytes of UDP payload, or none of EDNS with 0
+    public DNSTransport(int ednsPayload) throws IOException {
+        if (ednsPayload != 0 && (ednsPayload < 512 || ednsPayload > 65535)) {
+            throw new IllegalArgumentException("EDNS payload size must be 0 or between 512 and 65535");
+        }
+        this.ednsPayload = ednsPayload;
+        tcp = new DNSTcpPool();
+        selector = Selector.open();
+        try {
+            for (int i = 0; i < CHANNELS; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].configureBlocking(false);
+                channels[i].bind(null);
+                channels[i].register(selector, SelectionKey.OP_READ, i);
+            }
+        } catch (IOException e) {
+            close();
+            selector.close();       // the receiver that would close it never started
+            throw e;
+        }
+
+        receiver = new Thread(this::receiveLoop, "dns-transport");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    //Send a query for fqdn to a server on the standard DNS port
+    public CompletableFuture<DNSResponse> query(InetAddress server, String fqdn, int qtype) {
+        return query(new InetSocketAddress(server, DNS_PORT), fqdn, qtype);
+    }
+
+    //Send a query for records of type qtype for fqdn to a server, or wait for the response to
+    //an identical query already in flight. The returned future completes with the matching
+    //response; cancelling it forgets the query so a late response is dropped.
+    public CompletableFuture<DNSResponse> query(InetSocketAddress server, String fqdn, int qtype) {
+        return query(server, fqdn, qtype, true);
+    }
+
+    //Like query, but with coalesce false a new query is always sent, as a retransmission must
+    //be. Later identical queries then wait for the new one.
+    public CompletableFuture<DNSResponse> query(InetSocketAddress server, String fqdn, int qtype, boolean coalesce) {
+        return query(server + "/" + ResponseRecord.normalizeName(fqdn) + "/" + qtype, server, fqdn, qtype, coalesce);
+    }
+
+    //Send a query to a server that is expected to answer with a referral, which is the same
+    //whatever type is asked for. It may be answered by a query of this kind in flight for
+    //the same name of any type, so the response can be for another type than qtype.
+    public CompletableFuture<DNSResponse> queryForReferral(InetSocketAddress server, String fqdn, int qtype) {
+        return query(server + "/" + ResponseRecord.normalizeName(fqdn) + "/referral", server, fqdn, qtype, true);
+    }
+
+    //The flight is published under key before its query is sent, and only if no other
+    //thread published one first, so of two identical queries racing each other one sends
+    //and the other waits for it
+    private CompletableFuture<DNSResponse> query(String key, InetSocketAddress server, String fqdn, int qtype,
+                                                 boolean coalesce) {
+        while (true) {
+            Flight flight = inFlight.get(key);
+            if (coalesce && flight != null) {
+                CompletableFuture<DNSResponse> joined = flight.join();
+                if (joined != null) {
+                    coalesced.increment();
+                    return joined;
+                }
+                inFlight.remove(key, flight);
+                continue;
+            }
+            PendingQuery query = register(server, fqdn, qtype);
+            if (query == null) {
+                CompletableFuture<DNSResponse> failed = new CompletableFuture<DNSResponse>();
+                failed.completeExceptionally(new IOException("no free query ID, too many queries outstanding"));
+                return failed;
+            }
+            Flight mine = new Flight(query.future);
+            CompletableFuture<DNSResponse> waiter = mine.join();
+            // a retransmission takes the place of the flight it retransmits
+            if (flight == null ? inFlight.putIfAbsent(key, mine) != null : !inFlight.replace(key, flight, mine)) {
+                pending.remove(query.key(), query);
+                continue;       // another query got there first
+            }
+            mine.source.whenComplete((res, err) -> inFlight.remove(key, mine));
+            send(query, fqdn, qtype);
+            return waiter;
+        }
+    }
+
+    //How many queries were answered by waiting for an identical one instead of being sent
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    //How many truncated responses were asked for again over TCP
+    public long getTcpQueryCount() {
+        return tcp.getQueryCount();
+    }
+
+    //How many TCP connections were opened for them
+    public long getTcpConnectionCount() {
+        return tcp.getConnectionCount();
+    }
+
+    //Send a registered query. Its future fails straight away if it cannot be sent.
+    private void send(PendingQuery query, String fqdn, int qtype) {
+        query.future.whenComplete((res, err) -> pending.remove(query.key(), query));
+        if (closed) {
+            query.future.completeExceptionally(new IOException("transport is closed"));
+            return;
+        }
+
+        byte[] packet = encodeNewQuery(query.id, fqdn, qtype, ednsPayload).toByteArray();
+        try {
+            if (channels[query.channel].send(ByteBuffer.wrap(packet), query.server) == 0) {
+                query.future.completeExceptionally(new IOException("send buffer full"));
+            }
+        } catch (IOException e) {
+            query.future.completeExceptionally(e);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        for (DatagramChannel channel : channels) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        tcp.close();
+        for (PendingQuery query : pending.values()) {
+            query.future.completeExceptionally(new IOException("transport is closed"));
+        }
+    }
+
+    //Build a query packet asking for records of type qtype for fqdn
+    public static ByteArrayOutputStream encodeNewQuery(int queryId, String fqdn, int qtype) {
+        return encodeNewQuery(queryId, fqdn, qtype, 0);
+    }
+
+    //Build a query packet with an OPT record offering ednsPayload bytes of UDP payload, or
+    //without one if that is 0
+    public static ByteArrayOutputStream encodeNewQuery(int queryId, String fqdn, int qtype, int ednsPayload) {
+
+        ByteArrayOutputStream sendBuf = new ByteArrayOutputStream();
+
+        // write query ID into byte buffer
+        sendBuf.write(queryId >> 8);
+        sendBuf.write(queryId);
+
+        // write QR, AA, TC, RD, RA, Z, RCODE, and query count into byte buffer
+        sendBuf.write(0);
+        sendBuf.write(0);
+        sendBuf.write(0);
+        sendBuf.write(1);
+
+        // write answer count
+        sendBuf.write(0);
+        sendBuf.write(0);
+
+        //write NSCOUNT
+        sendBuf.write(0);
+        sendBuf.write(0);
+
+        //write additional record count
+        sendBuf.write(0);
+        sendBuf.write(ednsPayload > 0 ? 1 : 0);
+
+        //write fqdn into byte buffer
+        String[] substrings = fqdn.split("\\.");
+        for (int i = 0; i < substrings.length; i++) {
+            sendBuf.write(substrings[i].length());
+            byte[] substringByte = substrings[i].getBytes();
+            sendBuf.write(substringByte, 0, substringByte.length);
+        }
+        sendBuf.write(0);
+
+        //write Qtype
+        sendBuf.write(qtype >> 8);
+        sendBuf.write(qtype);
+
+        //write Qclass
+        sendBuf.write(0);
+        sendBuf.write(1);
+
+        if (ednsPayload > 0) {
+            //write the OPT record: root name, type, payload size in the class, no extended
+            //rcode, version 0 and no flags in the ttl, and no options
+            sendBuf.write(0);
+            sendBuf.write(TYPE_OPT >> 8);
+            sendBuf.write(TYPE_OPT);
+            sendBuf.write(ednsPayload >> 8);
+            sendBuf.write(ednsPayload);
+            sendBuf.write(new byte[6], 0, 6);
+        }
+
+        return sendBuf;
+    }
+
+    //Pick a channel at random and a query ID that is not in use on it by another outstanding
+    //query. Returns null if none was found in MAX_ID_TRIES picks, which only happens when
+    //the transport is close to CHANNELS * 65536 queries outstanding.
+    private PendingQuery register(InetSocketAddress server, String fqdn, int qtype) {
+        String qName = ResponseRecord.normalizeName(fqdn);
+        for (int i = 0; i < MAX_ID_TRIES; i++) {
+            int r = rnd.nextInt();
+            PendingQuery query = new PendingQuery(r & 0xffff, (r >>> 16) % CHANNELS, server, qName, qtype);
+            if (pending.putIfAbsent(query.key(), query) == null) {
+                return query;
+            }
+        }
+        return null;
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        DNSResponse parser = new DNSResponse();
+        while (!closed) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    int index = (Integer) key.attachment();
+                    SocketAddress source;
+                    while ((source = channel.receive(buf)) != null) {
+                        buf.flip();
+                        dispatch(index, source, buf, parser);
+                        buf.clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("DNS transport receive failed: " + e.getMessage());
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    //Match a packet to its query. The packet is only copied out of the receive buffer once it
+    //has been parsed and found to answer an outstanding query.
+    private void dispatch(int channel, SocketAddress source, ByteBuffer buf, DNSResponse parser) {
+        if (buf.remaining() < 12) {
+            return;
+        }
+        PendingQuery query = pending.get(PendingQuery.key(channel, buf.getShort(0) & 0xffff));
+        if (query == null || !query.server.equals(source)) {
+            return;
+        }
+        try {
+            parser.parse(buf);
+        } catch (RuntimeException e) {
+            return;     // malformed packet, keep waiting for a good one
+        }
+        if (!parser.questionMatches(query.qName) || parser.getQuestionType() != query.qType) {
+            return;
+        }
+        if (parser.isTruncated() && pending.remove(query.key(), query)) {
+            retryOverTcp(query, parser.copy());
+            return;
+        }
+        query.future.complete(parser.copy());
+    }
+
+    //Ask for a truncated response again over TCP, falling back to the truncated one
+    private void retryOverTcp(PendingQuery query, DNSResponse truncated) {
+        CompletableFuture<DNSResponse> full = tcp.query(query.server, query.qName, query.qType);
+        full.whenComplete((res, err) -> query.future.complete(err == null ? res : truncated));
+        query.future.whenComplete((res, err) -> {
+            if (query.future.isCancelled()) {
+                full.cancel(false);
+            }
+        });
+    }
+}
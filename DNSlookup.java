@@ -1,9 +1,5 @@
-
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**
@@ -19,11 +15,6 @@ public class DNSlookup {
 
 
     static final int MIN_PERMITTED_ARGUMENT_COUNT = 2;
-    static boolean tracingOn = false;
-    static InetAddress rootNameServer;
-
-    static Random rnd = new Random();
-    static byte[] queryId = new byte[2];
 
 
     /**
@@ -31,214 +22,148 @@ public class DNSlookup {
      */
     public static void main(String[] args) throws Exception {
         String fqdn;
-        boolean error= false;
-        DNSResponse response; // Just to force compilation
+        String batchFile = null;
+        int batchConcurrency = 64;      // lookups in flight at once in batch mode
         int argCount = args.length;
 
-        if (argCount < 2 || argCount > 3) {
+        if (argCount < MIN_PERMITTED_ARGUMENT_COUNT) {
             usage();
             return;
         }
 
-        String rootNameServerString = args[0];
-        rootNameServer = InetAddress.getByName(rootNameServerString);
+        Resolver.Builder builder = Resolver.builder().rootServer(args[0]).jmxName("DNSlookup:type=Resolver");
         fqdn = args[1];
 
-        if (argCount == 3 && args[2].equals("-t"))
-            tracingOn = true;
-
-        // Start adding code here to initiate the lookup
-
-        //send query
-        DatagramSocket socket = new DatagramSocket();
-        ByteArrayOutputStream sendBuf = encodeNewQuery(fqdn);
-
-        byte[] resBuf = new byte[1024*100];
-        byte[] byteArray = sendBuf.toByteArray();
-        DatagramPacket queryPacket = new DatagramPacket(byteArray, byteArray.length, rootNameServer, 53);
-        socket.send(queryPacket);
-
-
-
-        //get response
-        DatagramPacket responsePacket = new DatagramPacket(resBuf, resBuf.length);
-        socket.receive(responsePacket);
-
-        //display response
-        DNSResponse res = new DNSResponse(responsePacket.getData(), responsePacket.getLength());
-
-        ByteBuffer q = ByteBuffer.wrap(queryId);
-
-
-        int queryVal = q.getShort();
-        if (tracingOn) {
-			System.out.println("\n");
-			System.out.println("Query ID     "+res.getQueryID()+" "+fqdn+" --> "+rootNameServer.getHostAddress());
-			res.printDNSResponse();
-		}
-
-		ResponseRecord nextRequest = res.getNextRequest();
-
-		String nextFqdn = fqdn;
-		String nextAddress = rootNameServerString;
-		DNSResponse nextRes = null;
-
-		while (nextRequest != null) {
-			String nextType = nextRequest.getType();
+        int firstOption = 2;
+        if (fqdn.equals("-f") && argCount > 2) {
+            batchFile = args[2];
+            firstOption = 3;
+        }
 
+        int raceWidth = 1;
+        long raceStaggerMs = 0;
+        boolean stats = false;
+        String[] types = { "A" };
+        for (int i = firstOption; i < argCount; i++) {
+            if (args[i].equals("-t")) {
+                builder.tracing(true);
+            } else if (args[i].equals("-trace") && i + 1 < argCount) {
+                builder.traceFile(args[++i]);
+            } else if (args[i].equals("-type") && i + 1 < argCount) {
+                types = new String[] { args[++i].toUpperCase() };
+                if (DNSResponse.getTypeCode(types[0]) < 0) {
+                    usage();
+                    return;
+                }
+            } else if (args[i].equals("-dual")) {
+                types = new String[] { "A", "AAAA" };
+            } else if (args[i].equals("-cache") && i + 1 < argCount) {
+                builder.answerCacheSize(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-offheap") && i + 1 < argCount) {
+                builder.offHeapCache(Long.parseLong(args[++i]) << 20);
+            } else if (args[i].equals("-edns") && i + 1 < argCount) {
+                builder.ednsPayloadSize(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-race") && i + 1 < argCount) {
+                raceWidth = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-stagger") && i + 1 < argCount) {
+                raceStaggerMs = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-port") && i + 1 < argCount) {
+                builder.port(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-prefetch") && i + 1 < argCount) {
+                builder.prefetch(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-stale") && i + 1 < argCount) {
+                builder.serveStale(Long.parseLong(args[++i]));
+            } else if (args[i].equals("-snapshot") && i + 1 < argCount) {
+                builder.snapshot(args[++i], 60);
+            } else if (args[i].equals("-local") && i + 1 < argCount) {
+                builder.localZone(args[++i]);
+            } else if (args[i].equals("-stats") && i + 1 < argCount) {
+                builder.metricsInterval(Long.parseLong(args[++i]) * 1000);
+                stats = true;
+            } else if (args[i].equals("-j") && i + 1 < argCount) {
+                batchConcurrency = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        builder.race(raceWidth, raceStaggerMs);
 
-			if (nextRequest.isAnswer()) {
-				if (!nextType.equals("CN")
-						&& !nextType.equals("NS")
-						&& (!nextRequest.getName().trim().equals(nextFqdn.trim()) || !nextRequest.getData().trim().equals(nextAddress.trim()))) {
-					break;
+		try (Resolver resolver = builder.build()) {
+			if (batchFile != null) {
+				Reader input = batchFile.equals("-") ? new InputStreamReader(System.in) : new FileReader(batchFile);
+				try (BufferedReader names = new BufferedReader(input)) {
+					resolveBatch(resolver, names, batchConcurrency, types);
+				}
+			} else {
+				List<ResolutionResult> results = resolver.resolveAll(fqdn, types).join();
+				// the trace comes first, as it would have if it were printed as it happened
+				resolver.flushTrace();
+				for (ResolutionResult result : results) {
+					System.out.println(result);
 				}
 			}
-
-			if (nextRequest.getName().trim().equals(nextFqdn.trim()) && nextRequest.getData().trim().equals(nextAddress.trim())) {
-				nextFqdn = fqdn;
-				nextRes = getDNSResponse(nextAddress, nextFqdn);
-			} else if (nextType == "A") {
-				nextAddress = nextRequest.getData();
-				nextRes = getDNSResponse(nextAddress, nextFqdn);
-			} else if (nextType == "NS") {
-				nextFqdn = nextRequest.getData();
-				nextAddress = rootNameServerString;
-				nextRes = getDNSResponse(nextAddress, nextFqdn);
-			} else if (nextType == "CN") {
-				nextAddress = rootNameServerString;
-				nextFqdn = nextRequest.getData();
-				nextRes = getDNSResponse(nextAddress, nextFqdn);
-			}
-
-			if (tracingOn) {
-				nextRes.printDNSResponse();
+			if (stats) {
+				resolver.getMetrics().print(System.err);
 			}
-
-			nextRequest = nextRes.getNextRequest();
-		}
-
-		socket.close();
-		ResponseRecord finalRR;
-		if (nextRes != null) {
-			finalRR= nextRes.getFirstAnswer();
-		} else {
-			finalRR = res.getFirstAnswer();
 		}
+	}
 
-        long start = System.currentTimeMillis();
-        long end = start + 10*1000; // 60 seconds * 1000 ms/sec
-
-        // if server name cannot be retrieved successfully
-		if(finalRR.getType().equals("SOA") || res.getRCode()==5){
-            // print SOA record
-			System.out.println(fqdn + " " + "-4" + " " + "0.0.0.0");
-		} else if(res.getRCode()==3 || res.getQueryID() == queryVal){
-            // when ip is not found
-			System.out.println(fqdn + " " + "-1" + " " + "0.0.0.0");
-		} else if(System.currentTimeMillis() >= end){
-            //terminate lookup after 60 sec
-            System.out.println(fqdn + " " + "-3" + " " + "0.0.0.0");
-        }else {
-
-			String finalAddress = finalRR.getData();
-			int finalTtl = finalRR.getTtl();
-			System.out.println(fqdn + " " + finalTtl + " " + finalAddress);
-
-
+	//Resolve every name read from names, one per line, with up to concurrency lookups running
+	//at once. Each result is printed as soon as its lookup finishes, so the output is not in
+	//the order of the input. The lookups are asynchronous, so no thread waits on any of them.
+	//With several types a name's lookups for all of them run together.
+	public static void resolveBatch(Resolver resolver, BufferedReader names, int concurrency, String... types)
+			throws Exception {
+		Semaphore slots = new Semaphore(concurrency);
+		String line;
+		while ((line = names.readLine()) != null) {
+			String name = line.trim();
+			if (name.length() == 0 || name.startsWith("#")) {
+				continue;
+			}
+			slots.acquire();
+			resolver.resolveAll(name, types).whenComplete((results, err) -> {
+				if (results != null) {
+					for (ResolutionResult result : results) {
+						System.out.println(result);
+					}
+				} else {
+					System.out.println(new ResolutionResult(name, types[0], ResolutionResult.OTHER_ERROR));
+				}
+				slots.release();
+			});
 		}
+		// wait for the last lookups to finish
+		slots.acquire(concurrency);
 	}
 
 	private static void usage() {
-		System.out.println("Usage: java -jar DNSlookup.jar rootDNS name [-t]");
+		System.out.println("Usage: java -jar DNSlookup.jar rootDNS name [-t] [-trace file] [-type t | -dual] [-cache size] [-offheap mb] [-edns size] [-race n] [-stagger ms] [-prefetch n] [-stale s] [-snapshot file] [-local file] [-stats s]");
+		System.out.println("       java -jar DNSlookup.jar rootDNS -f file [-j n] [options]");
 		System.out.println("   where");
 		System.out.println("       rootDNS - the IP address (in dotted form) of the root");
 		System.out.println("                 DNS server you are to start your search at");
 		System.out.println("       name    - fully qualified domain name to lookup");
+		System.out.println("       file    - file with one name to lookup per line, - to read them from stdin");
 		System.out.println("       -t      -trace the queries made and responses received");
-	}
-
-	private static ByteArrayOutputStream encodeNewQuery(String fqdn) {
-
-		ByteArrayOutputStream sendBuf = new ByteArrayOutputStream();
-
-		// create random query ID and write into byte buffer
-		byte[] queryId = new byte[2];
-		rnd.nextBytes(queryId);
-		sendBuf.write(queryId, 0, 2);
-
-		// write QR, AA, TC, RD, RA, Z, RCODE, and query count into byte buffer
-		sendBuf.write(0);
-		sendBuf.write(0);
-		sendBuf.write(0);
-		sendBuf.write(1);
-
-		// write answer count
-		sendBuf.write(0);
-		sendBuf.write(0);
-
-		//write NSCOUNT
-		sendBuf.write(0);
-		sendBuf.write(0);
-
-		//write additional record count
-		sendBuf.write(0);
-		sendBuf.write(0);
-
-		//write fqdn into byte buffer
-		String[] substrings = fqdn.split("\\.");
-		for (int i = 0; i < substrings.length; i++) {
-			sendBuf.write(substrings[i].length());
-			byte[] substringByte = substrings[i].getBytes();
-			sendBuf.write(substringByte, 0, substringByte.length);
-		}
-		sendBuf.write(0);
-
-		//write Qtype
-		sendBuf.write(0);
-		sendBuf.write(1);
-
-		//write Qclass
-		sendBuf.write(0);
-		sendBuf.write(1);
-
-		return sendBuf;
-	}
-
-	public static DNSResponse getDNSResponse(String addressString, String fqdn) throws Exception{
-		InetAddress nextAddress = null;
-		DatagramPacket nextQueryPacket = null;
-		DatagramPacket nextResponsePacket = null;
-		DNSResponse nextRes = null;
-		ByteArrayOutputStream nextSendBuf = null;
-		byte[] nextResBuf = new byte[4096];
-		byte[] nextByteArray;
-
-		DatagramSocket socket = new DatagramSocket();
-
-		nextSendBuf = encodeNewQuery(fqdn);
-		nextByteArray = nextSendBuf.toByteArray();
-		nextAddress = InetAddress.getByName(addressString);
-
-		nextQueryPacket = new DatagramPacket(nextByteArray, nextByteArray.length, nextAddress, 53);
-		socket.send(nextQueryPacket);
-
-		nextResponsePacket = new DatagramPacket(nextResBuf, nextResBuf.length);
-		socket.receive(nextResponsePacket);
-		nextRes = new DNSResponse(nextResponsePacket.getData(), nextResponsePacket.getLength());
-
-		if (tracingOn) {
-			System.out.println("\n");
-			System.out.println("Query ID     " + nextRes.getQueryID() + " " + fqdn + " --> " + nextAddress.getHostAddress());
-		}
-		socket.close();
-
-		return nextRes;
-
+		System.out.println("       -trace  -write the trace to this file instead, to be printed by TraceDecoder");
+		System.out.println("       -type   -record type to look up: A (the default), AAAA, MX, TXT, SRV, PTR, NS, CNAME, SOA or TYPEn");
+		System.out.println("       -dual   -look up A and AAAA records together");
+		System.out.println("       -cache  -maximum number of record sets kept in the answer cache");
+		System.out.println("       -offheap-keep the answer cache in this many megabytes off the heap instead");
+		System.out.println("       -edns   -UDP payload size offered to servers, 0 for none; truncated answers are fetched over TCP");
+		System.out.println("       -race   -send each query to this many of the zone's servers and take the first answer");
+		System.out.println("       -stagger-milliseconds between the raced sends, 0 sends them all at once");
+		System.out.println("       -j      -number of lookups to run at once when reading names from a file");
+		System.out.println("       -prefetch-refresh names asked for this many times just before they expire");
+		System.out.println("       -stale  -answer with records up to this many seconds expired while refreshing them");
+		System.out.println("       -snapshot-file the caches are loaded from at start and saved to at exit");
+		System.out.println("       -local  -hosts or master file of names answered locally, reloaded when it changes");
+		System.out.println("       -stats  -print resolver metrics to stderr every s seconds and at the end");
+		System.out.println("       -port   -port the name servers listen on, 53 unless testing against a MockHierarchy");
 	}
 
 
 
 }
-
-
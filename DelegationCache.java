@@ -0,0 +1,180 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Remembers the zone cuts learned from referrals: for every zone the names of its
+// authoritative name servers and whatever addresses are known for them, taken from the
+// glue in the additional section or from looking the name servers up. A lookup can then
+// start at the closest enclosing zone it knows about instead of at the root.
+//
+// The zones are kept in a StripedLruMap, since every lookup starts with findClosest. A
+// Delegation is never changed once it is in the cache: addAddress puts a copy with the
+// address added in its place, so findClosest can hand out the cached one as it is.
+
+public class DelegationCache {
+    public static final int DEFAULT_MAX_ZONES = 10000;
+
+    private final StripedLruMap<Delegation> zones;
+
+    public static class Delegation {
+        private final String zone;
+        private final List<String> nameServers = new ArrayList<String>();
+        private final List<String> addresses = new ArrayList<String>();
+        private long expires;       // absolute expiry time in ms, only set while it is built
+
+        Delegation(String zone, long expires) {
+            this.zone = zone;
+            this.expires = expires;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public List<String> getNameServers() {
+            return Collections.unmodifiableList(nameServers);
+        }
+
+        public List<String> getAddresses() {
+            return Collections.unmodifiableList(addresses);
+        }
+
+        public int getTtl() {
+            return (int) Math.max(0, (expires - System.currentTimeMillis()) / 1000);
+        }
+
+        private Delegation copy() {
+            Delegation d = new Delegation(zone, expires);
+            d.nameServers.addAll(nameServers);
+            d.addresses.addAll(addresses);
+            return d;
+        }
+    }
+
+    public DelegationCache(int maxZones) {
+        this.zones = new StripedLruMap<Delegation>(maxZones);
+    }
+
+    //Remember the delegation in a referral from the servers of serverZone ("" for the root).
+    //The NS records in the authority section name the zone and its servers and the A records
+    //in the additional section give their addresses. Only delegations at or below serverZone
+    //and glue inside it are taken, so a server cannot redirect lookups for zones it does
+    //not serve.
+    public void put(DNSResponse response, String serverZone) {
+        long now = System.currentTimeMillis();
+        Map<String, Delegation> found = new LinkedHashMap<String, Delegation>();
+        for (ResponseRecord ns : response.findRecords(DNSResponse.SECTION_AUTHORITY, null, DNSResponse.getTypeCode("NS"))) {
+            if (ns.getTtl() <= 0) {
+                continue;
+            }
+            String zone = ResponseRecord.normalizeName(ns.getName());
+            if (zone.length() == 0) {
+                continue;       // the root servers are always known
+            }
+            if (!ResponseRecord.isInZone(zone, serverZone)) {
+                continue;       // out of bailiwick
+            }
+            Delegation d = found.get(zone);
+            if (d == null) {
+                d = new Delegation(zone, now + ns.getTtl() * 1000L);
+                found.put(zone, d);
+            }
+            d.expires = Math.min(d.expires, now + ns.getTtl() * 1000L);
+            String server = ResponseRecord.normalizeName(ns.getData());
+            d.nameServers.add(server);
+            if (!ResponseRecord.isInZone(server, serverZone)) {
+                continue;
+            }
+            for (ResponseRecord glue : response.findRecords(DNSResponse.SECTION_ADDITIONAL, server, DNSResponse.getTypeCode("A"))) {
+                if (glue.getTtl() > 0) {
+                    d.addresses.add(glue.getData());
+                    d.expires = Math.min(d.expires, now + glue.getTtl() * 1000L);
+                }
+            }
+        }
+        for (Delegation d : found.values()) {
+            zones.put(d.zone, d);
+        }
+    }
+
+    //Add the address of one of a zone's name servers that had to be looked up separately
+    public void addAddress(String zone, String address, int ttl) {
+        String key = ResponseRecord.normalizeName(zone);
+        while (ttl > 0) {
+            Delegation d = zones.get(key);
+            if (d == null || d.addresses.contains(address)) {
+                return;
+            }
+            Delegation added = d.copy();
+            added.addresses.add(address);
+            added.expires = Math.min(d.expires, System.currentTimeMillis() + ttl * 1000L);
+            if (zones.replace(key, d, added)) {
+                return;
+            }
+            // changed in the meantime, add to what is there now
+        }
+    }
+
+    //Get the closest unexpired delegation enclosing name, or null if only the root is known
+    public Delegation findClosest(String name) {
+        String zone = ResponseRecord.normalizeName(name);
+        long now = System.currentTimeMillis();
+        while (zone.length() > 0) {
+            Delegation d = zones.get(zone);
+            if (d != null && d.expires <= now) {
+                zones.remove(zone, d);
+            } else if (d != null) {
+                return d;
+            }
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return null;
+    }
+
+    //Write every zone to a snapshot, see CacheSnapshot. The zones are collected first and
+    //written without holding any lock.
+    void save(DataOutputStream out) throws IOException {
+        List<Delegation> all = new ArrayList<Delegation>();
+        zones.forEach((zone, d) -> all.add(d));
+        out.writeInt(all.size());
+        for (Delegation d : all) {
+            CacheSnapshot.writeString(out, d.zone);
+            out.writeLong(d.expires);
+            out.writeShort(d.nameServers.size());
+            for (String ns : d.nameServers) {
+                CacheSnapshot.writeString(out, ns);
+            }
+            out.writeShort(d.addresses.size());
+            for (String address : d.addresses) {
+                CacheSnapshot.writeString(out, address);
+            }
+        }
+    }
+
+    //Read the zones of a snapshot, keeping those that have not expired. Returns how many were kept.
+    int load(ByteBuffer in) {
+        long now = System.currentTimeMillis();
+        int count = in.getInt();
+        int loaded = 0;
+        for (int i = 0; i < count; i++) {
+            Delegation d = new Delegation(CacheSnapshot.readString(in), in.getLong());
+            for (int n = in.getShort() & 0xffff; n > 0; n--) {
+                d.nameServers.add(CacheSnapshot.readString(in));
+            }
+            for (int n = in.getShort() & 0xffff; n > 0; n--) {
+                d.addresses.add(CacheSnapshot.readString(in));
+            }
+            if (d.expires > now) {
+                zones.put(d.zone, d);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    public int size() {
+        return zones.size();
+    }
+}
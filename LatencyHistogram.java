@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram of latencies in microseconds that any number of threads can record into
+// without locking. Values are counted in buckets that grow exponentially, with eight
+// buckets for every power of two, so a percentile read from it is within 12.5% of the
+// real one over the whole range from a microsecond to hours.
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;     // values below this get a bucket each
+    private static final int BUCKETS = LINEAR + (64 - SUB_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long micros) {
+        long v = Math.max(0, micros);
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    //The latency in microseconds below which fraction (0.5, 0.99, ...) of the values fall
+    public long getPercentileMicros(double fraction) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    //One line summary in milliseconds
+    public String summary() {
+        return String.format("n %d p50 %.3f p99 %.3f p999 %.3f max %.3f ms", getCount(),
+                getPercentileMicros(0.5) / 1e3, getPercentileMicros(0.99) / 1e3,
+                getPercentileMicros(0.999) / 1e3, getMaxMicros() / 1e3);
+    }
+
+    private static int bucket(long v) {
+        if (v < LINEAR) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    //The largest value that falls in bucket i
+    private static long upperBound(int i) {
+        if (i < LINEAR) {
+            return i;
+        }
+        int exponent = (i - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+        long sub = (i - LINEAR) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Drives a Resolver against an in-process MockHierarchy and reports throughput and the
+// latency distribution, so resolver performance can be measured offline and compared
+// between changes. Names are taken round robin from a file, or from every A and CNAME
+// record in the config when no file is given.
+//
+//   java LoadGenerator config [-port p] [-n queries] [-c concurrency] [-names file] [-race n]
+
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            usage();
+            return;
+        }
+        String config = args[0];
+        int port = MockHierarchy.DEFAULT_PORT;
+        int total = 10000;
+        int concurrency = 64;
+        int raceWidth = 1;
+        String namesFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                total = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-c") && i + 1 < args.length) {
+                concurrency = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-names") && i + 1 < args.length) {
+                namesFile = args[++i];
+            } else if (args[i].equals("-race") && i + 1 < args.length) {
+                raceWidth = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+
+        try (MockHierarchy hierarchy = new MockHierarchy(config, port)) {
+            List<String> names = namesFile != null ? readNames(namesFile) : defaultNames(hierarchy);
+            Resolver.Builder builder = Resolver.builder().port(port).race(raceWidth, 0);
+            for (String root : hierarchy.getRootServers()) {
+                builder.rootServer(root);
+            }
+            try (Resolver resolver = builder.build()) {
+                run(resolver, names, total, concurrency).print(System.out);
+                resolver.getMetrics().print(System.out);
+            }
+        }
+    }
+
+    // Latencies and outcomes of one run
+    static class Report {
+        final long[] latencyNanos;
+        final long elapsedNanos;
+        final Map<Integer, Integer> statusCounts;
+
+        Report(long[] latencyNanos, long elapsedNanos, Map<Integer, Integer> statusCounts) {
+            this.latencyNanos = latencyNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.statusCounts = statusCounts;
+        }
+
+        double getQps() {
+            return latencyNanos.length / (elapsedNanos / 1e9);
+        }
+
+        //Latency in ms at a fraction (0.5, 0.99, ...) of the sorted latencies
+        double getPercentile(double fraction) {
+            int index = (int) Math.ceil(fraction * latencyNanos.length) - 1;
+            return latencyNanos[Math.max(0, Math.min(latencyNanos.length - 1, index))] / 1e6;
+        }
+
+        void print(PrintStream out) {
+            out.format("queries %d in %.3f s, %.0f qps%n", latencyNanos.length, elapsedNanos / 1e9, getQps());
+            out.format("latency ms p50 %.3f p99 %.3f p999 %.3f max %.3f%n",
+                    getPercentile(0.5), getPercentile(0.99), getPercentile(0.999), getPercentile(1.0));
+            out.println("status " + statusCounts);
+        }
+    }
+
+    //Resolve total names with up to concurrency lookups in flight and time each one
+    static Report run(Resolver resolver, List<String> names, int total, int concurrency) throws InterruptedException {
+        long[] latencies = new long[total];
+        ConcurrentHashMap<Integer, Integer> statusCounts = new ConcurrentHashMap<Integer, Integer>();
+        Semaphore slots = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            final int index = i;
+            final long sent = System.nanoTime();
+            slots.acquire();
+            resolver.resolve(names.get(i % names.size()), "A").whenComplete((result, err) -> {
+                latencies[index] = System.nanoTime() - sent;
+                int status = result != null ? result.getStatus() : ResolutionResult.OTHER_ERROR;
+                statusCounts.merge(status, 1, Integer::sum);
+                slots.release();
+            });
+        }
+        slots.acquire(concurrency);
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        return new Report(latencies, elapsed, new TreeMap<Integer, Integer>(statusCounts));
+    }
+
+    private static List<String> defaultNames(MockHierarchy hierarchy) {
+        List<String> names = new ArrayList<String>(hierarchy.getNames("A"));
+        names.addAll(hierarchy.getNames("CN"));
+        return names;
+    }
+
+    private static List<String> readNames(String file) throws IOException {
+        List<String> names = new ArrayList<String>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    names.add(line);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java LoadGenerator config [-port p] [-n queries] [-c concurrency] [-names file] [-race n]");
+        System.out.println("   where");
+        System.out.println("       config  - MockHierarchy config describing the servers and their zones");
+        System.out.println("       -port   -port the mock servers listen on");
+        System.out.println("       -n      -number of lookups to run");
+        System.out.println("       -c      -number of lookups in flight at once");
+        System.out.println("       -names  -file with the names to look up, one per line");
+        System.out.println("       -race   -number of servers each query is raced across");
+    }
+}
@@ -0,0 +1,585 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Names answered from a local file instead of the network: internal names, or public
+// names overridden. The file may be in hosts style or in master file style, one entry per
+// line, and the two can be mixed:
+//
+//   <address> <name> [<name> ...]            an A or AAAA record for each of the names
+//   <name> [<ttl>] [IN] <type> <data>        a record of any type DNSResponse names
+//   $TTL <seconds>                           the ttl of the records after it that have none
+//
+// Lines starting with # or ; are comments and names are absolute, with or without the
+// trailing dot. A name with local records is answered from them alone, so a type it has
+// none of gets NODATA. Below a name with a local SOA record every name without local
+// records gets NXDOMAIN, or NODATA if there are names below it, so whole zones can be
+// served locally.
+//
+// Parsing a big file at every start is slow, so the file is compiled once into an index,
+// which is mapped into memory and searched where it lies. It is only compiled again when
+// the file changes. The index goes into a directory of the caller's choosing, by default
+// the user's cache directory ($XDG_CACHE_HOME/dnslookup or ~/.cache/dnslookup), never next
+// to the file, which may well be /etc/hosts. It is named after the file and a hash of its
+// path. If it cannot be written there the index is kept in memory instead. The record sets
+// in it are sorted by key: the owner name with its labels reversed (www.example.com
+// becomes com.example.www), a zero byte and the type. That keeps the sets of a name
+// together, followed by the names below it, and makes the reversed names of the zones
+// above a name prefixes of its own. A hash table of every name, and of every name above
+// one, leads to the name's first record set, so a lookup reads a couple of places in the
+// file rather than searching it. reloadIfChanged compiles a changed file and swaps the new
+// index in while lookups go on with the old one.
+//
+// The index layout, all integers big endian:
+//
+//   int magic, int version, long modified time and long size of the file it was compiled from
+//   int count, int slots
+//   count ints: the offset of each record set in the file, in key order
+//   slots pairs of ints: the hash of a reversed name and 1 + the index of its first record
+//                        set, or two zeros for a free slot
+//   per record set: short key length, key bytes, int ttl, short n, n record data strings
+//
+// where the key is UTF-8 and each data string is a short length followed by that many bytes
+// of UTF-8, the record's data as ResponseRecord.getData has it.
+
+public class LocalZone {
+    public static final int DEFAULT_TTL = 3600;
+    private static final int MAGIC = 0x444e534c;       // "DNSL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final Pattern FIELDS = Pattern.compile("\\s+");
+    private static final Pattern IPV4 = Pattern.compile("\\d+\\.\\d+\\.\\d+\\.\\d+");
+
+    private final Path source;
+    private final Path indexFile;               // null keeps the index in memory
+    private volatile Index index;
+    private long failedModified = -2;           // the file as it was when it last failed to
+    private long failedSize = -2;               // compile, -1 if it could not be read at all
+
+    // A compiled index mapped into memory. Lookups read it through duplicates of buffer.
+    private static class Index {
+        final ByteBuffer buffer;
+        final int count;        // record sets
+        final int slots;        // entries of the name table, a power of two
+        final int tableStart;
+        final long modified;
+        final long size;
+
+        Index(ByteBuffer buffer, int count, int slots, long modified, long size) {
+            this.buffer = buffer;
+            this.count = count;
+            this.slots = slots;
+            this.tableStart = HEADER_SIZE + 4 * count;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    // What the local data has to say about a name and type: the records of that type, or a
+    // CNAME for the name, or no records with the rcode and the SOA record of a negative answer
+    public static class Answer {
+        private final int rCode;
+        private final List<ResponseRecord> records;
+        private final SOARecord soa;
+
+        Answer(int rCode, List<ResponseRecord> records, SOARecord soa) {
+            this.rCode = rCode;
+            this.records = records;
+            this.soa = soa;
+        }
+
+        public int getRCode() {
+            return rCode;
+        }
+
+        public List<ResponseRecord> getRecords() {
+            return records;
+        }
+
+        public SOARecord getSOA() {
+            return soa;
+        }
+    }
+
+    // One record set while compiling
+    private static class RecordSet {
+        final byte[] key;
+        final List<String> data = new ArrayList<String>();
+        int ttl = Integer.MAX_VALUE;
+
+        RecordSet(byte[] key) {
+            this.key = key;
+        }
+    }
+
+    //Open the local data in file, compiling it first unless its index in the default index
+    //directory is up to date
+    public LocalZone(String file) throws IOException {
+        this(file, null);
+    }
+
+    //Open the local data in file with its index in indexDir, the default directory if null
+    public LocalZone(String file, String indexDir) throws IOException {
+        source = Paths.get(file);
+        Path dir = indexDir != null ? Paths.get(indexDir) : defaultIndexDir();
+        indexFile = dir != null ? dir.resolve(source.getFileName() + "-" + pathHash(source) + ".idx") : null;
+        index = open();
+    }
+
+    //Number of record sets
+    public int size() {
+        return index.count;
+    }
+
+    //Compile the file again and start answering from it if it changed since it was last
+    //compiled. Returns true if it did. A file that failed to compile is not tried again,
+    //and the failure not reported again, until its modified time or size changes.
+    public boolean reloadIfChanged() throws IOException {
+        Index current = index;
+        long modified = -1;
+        long size = -1;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+            modified = attrs.lastModifiedTime().toMillis();
+            size = attrs.size();
+        } catch (IOException e) {
+            // gone or unreadable, open reports why
+        }
+        if ((modified == current.modified && size == current.size)
+                || (modified == failedModified && size == failedSize)) {
+            return false;
+        }
+        try {
+            index = open();
+        } catch (IOException e) {
+            failedModified = modified;
+            failedSize = size;
+            throw e;
+        }
+        failedModified = -2;
+        failedSize = -2;
+        return true;
+    }
+
+    //Look up the records of type for name, null if the local data knows nothing of the name
+    public Answer lookup(String name, String type) {
+        Index idx = index;
+        ByteBuffer in = idx.buffer.duplicate();
+        String n = ResponseRecord.normalizeName(name);
+        byte[] reversed = reverse(n).getBytes(StandardCharsets.UTF_8);
+
+        int first = find(idx, reversed);
+        if (first >= 0) {
+            List<ResponseRecord> records = get(idx, in, first, n, reversed, type);
+            if (records == null && !type.equals("CN")) {
+                records = get(idx, in, first, n, reversed, "CN");
+            }
+            if (records != null) {
+                return new Answer(0, records, null);
+            }
+        }
+        SOARecord soa = findSOA(idx, in, n, reversed);
+        if (first >= 0 && (soa != null || in.get(offset(idx, first) + 2 + reversed.length) == 0)) {
+            // the name is ours, it just has no records of this type. Outside a local zone
+            // only names with records of their own are, not the names above them.
+            return new Answer(0, Collections.<ResponseRecord>emptyList(), soa != null ? soa : defaultSOA(n));
+        }
+        if (soa != null) {
+            return new Answer(NegativeCache.NXDOMAIN, Collections.<ResponseRecord>emptyList(), soa);
+        }
+        return null;
+    }
+
+    //Index of the first record set of the name, or of a name below it, -1 if there is none
+    private static int find(Index idx, byte[] reversed) {
+        int h = hash(reversed, reversed.length);
+        int mask = idx.slots - 1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int entry = idx.tableStart + 8 * slot;
+            int i = idx.buffer.getInt(entry + 4) - 1;
+            if (i < 0) {
+                return -1;
+            }
+            if (idx.buffer.getInt(entry) == h && isNameOf(idx.buffer, offset(idx, i), reversed)) {
+                return i;
+            }
+        }
+    }
+
+    //The records of type, looked for among the record sets of the name from first on
+    private static List<ResponseRecord> get(Index idx, ByteBuffer in, int first, String name, byte[] reversed,
+                                            String type) {
+        byte[] t = type.getBytes(StandardCharsets.UTF_8);
+        for (int i = first; i < idx.count; i++) {
+            int offset = offset(idx, i);
+            int length = in.getShort(offset) & 0xffff;
+            if (length <= reversed.length || in.get(offset + 2 + reversed.length) != 0
+                    || !matches(in, offset + 2, reversed)) {
+                return null;    // past the sets of the name
+            }
+            if (length - reversed.length - 1 != t.length || !matches(in, offset + 3 + reversed.length, t)) {
+                continue;
+            }
+            in.position(offset + 2 + length);
+            int ttl = in.getInt();
+            int n = in.getShort() & 0xffff;
+            List<ResponseRecord> records = new ArrayList<ResponseRecord>(n);
+            for (int j = 0; j < n; j++) {
+                records.add(CacheSnapshot.toRecord(name, type, CacheSnapshot.readString(in), Resolver.CLASS_IN, ttl));
+            }
+            return records;
+        }
+        return null;
+    }
+
+    //The SOA record of the closest enclosing zone that is served locally, null if none is.
+    //The reversed names of the zones enclosing a name are prefixes of its own.
+    private static SOARecord findSOA(Index idx, ByteBuffer in, String name, byte[] reversed) {
+        String zone = name;
+        int length = reversed.length;
+        while (true) {
+            byte[] r = Arrays.copyOf(reversed, length);
+            int first = find(idx, r);
+            if (first >= 0) {
+                List<ResponseRecord> soa = get(idx, in, first, zone, r, "SOA");
+                if (soa != null) {
+                    return (SOARecord) soa.get(0);
+                }
+            }
+            if (length == 0) {
+                return null;
+            }
+            while (length > 0 && reversed[--length] != '.') {
+                // back to the dot before the last label
+            }
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+    }
+
+    private static int offset(Index idx, int i) {
+        return idx.buffer.getInt(HEADER_SIZE + 4 * i);
+    }
+
+    //True if the key of the record set at offset is for the reversed name or a name below it
+    private static boolean isNameOf(ByteBuffer in, int offset, byte[] reversed) {
+        if (reversed.length == 0) {
+            return true;
+        }
+        int length = in.getShort(offset) & 0xffff;
+        if (length <= reversed.length || !matches(in, offset + 2, reversed)) {
+            return false;
+        }
+        byte next = in.get(offset + 2 + reversed.length);
+        return next == 0 || next == '.';
+    }
+
+    private static boolean matches(ByteBuffer in, int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (in.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //FNV-1a of the first length bytes, the same when compiling and when looking up
+    private static int hash(byte[] bytes, int length) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    //Map the index, compiling the file into it first if it is missing or out of date. An index
+    //that cannot be written is used from memory.
+    private Index open() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        long modified = attrs.lastModifiedTime().toMillis();
+        Index existing = indexFile != null ? map(indexFile) : null;
+        if (existing != null && existing.modified == modified && existing.size == attrs.size()) {
+            return existing;
+        }
+        byte[] compiled = compile(source, modified, attrs.size());
+        if (indexFile != null) {
+            try {
+                write(indexFile, compiled);
+                Index mapped = map(indexFile);
+                if (mapped != null) {
+                    return mapped;
+                }
+            } catch (IOException e) {
+                System.err.println("cannot write local zone index, keeping it in memory: " + e.getMessage());
+            }
+        }
+        return read(ByteBuffer.wrap(compiled));
+    }
+
+    //Map an index file, null if there is none, it cannot be read or it is not one
+    private static Index map(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            return null;        // compiled again
+        }
+    }
+
+    //The index in a buffer, null if it is not one
+    private static Index read(ByteBuffer in) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return null;
+        }
+        long modified = in.getLong();
+        long size = in.getLong();
+        int count = in.getInt();
+        int slots = in.getInt();
+        if (count < 0 || slots <= 0 || Integer.bitCount(slots) != 1
+                || HEADER_SIZE + 4L * count + 8L * slots > in.limit()) {
+            return null;
+        }
+        return new Index(in, count, slots, modified, size);
+    }
+
+    //Write an index next to its final place and rename it there, so a reader never maps half
+    //of one. The directory is made readable by its owner only.
+    private static void write(Path index, byte[] compiled) throws IOException {
+        Path dir = index.toAbsolutePath().getParent();
+        if (!Files.isDirectory(dir)) {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(dir);
+            }
+        }
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        Files.write(tmp, compiled);
+        Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //$XDG_CACHE_HOME/dnslookup, or .cache/dnslookup in the user's home; null without either
+    static Path defaultIndexDir() {
+        String cache = System.getenv("XDG_CACHE_HOME");
+        if (cache != null && cache.length() > 0) {
+            return Paths.get(cache, "dnslookup");
+        }
+        String home = System.getProperty("user.home");
+        return home != null && home.length() > 0 ? Paths.get(home, ".cache", "dnslookup") : null;
+    }
+
+    //Part of the SHA-256 of the absolute path of file, so files of the same name in different
+    //places get indexes of their own
+    private static String pathHash(Path file) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    file.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every JVM has SHA-256
+        }
+    }
+
+    //Parse a hosts or master file and compile its index
+    static byte[] compile(Path source, long modified, long size) throws IOException {
+        Map<String, RecordSet> sets = new HashMap<String, RecordSet>();
+        try (BufferedReader in = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            int defaultTtl = DEFAULT_TTL;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#") || line.startsWith(";")) {
+                    continue;
+                }
+                String[] f = FIELDS.split(line);
+                try {
+                    if (f[0].equalsIgnoreCase("$TTL") && f.length == 2) {
+                        defaultTtl = Integer.parseInt(f[1]);
+                    } else if (isAddress(f[0])) {
+                        DNSMessageWriter.parseAddress(f[0]);
+                        for (int i = 1; i < f.length; i++) {
+                            add(sets, f[i], f[0].indexOf(':') < 0 ? "A" : "AAAA", defaultTtl, f[0]);
+                        }
+                    } else {
+                        addRecord(sets, f, defaultTtl);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(source + " line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        List<RecordSet> sorted = new ArrayList<RecordSet>(sets.values());
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+
+        // every name and every name above it goes into the name table with its first record
+        // set, which for a name without records of its own is the first set below it
+        Map<String, Integer> names = new HashMap<String, Integer>();
+        for (int i = 0; i < sorted.size(); i++) {
+            byte[] key = sorted.get(i).key;
+            int length = 0;
+            while (key[length] != 0) {
+                length++;
+            }
+            while (names.putIfAbsent(new String(key, 0, length, StandardCharsets.ISO_8859_1), i) == null
+                    && length > 0) {
+                while (length > 0 && key[--length] != '.') {
+                    // back to the dot before the last label
+                }
+            }
+        }
+        int slots = 2;
+        while (slots < 2 * names.size()) {
+            slots <<= 1;
+        }
+        int[] table = new int[2 * slots];
+        for (Map.Entry<String, Integer> e : names.entrySet()) {
+            byte[] name = e.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            int h = hash(name, name.length);
+            int slot = h & (slots - 1);
+            while (table[2 * slot + 1] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            table[2 * slot] = h;
+            table[2 * slot + 1] = e.getValue() + 1;
+        }
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(index)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(modified);
+            out.writeLong(size);
+            out.writeInt(sorted.size());
+            out.writeInt(slots);
+            List<byte[]> encoded = new ArrayList<byte[]>(sorted.size());
+            long offset = HEADER_SIZE + 4L * sorted.size() + 8L * slots;
+            for (RecordSet set : sorted) {
+                byte[] bytes = encode(set);
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException(source + " is too big for a local zone index");
+                }
+                out.writeInt((int) offset);
+                encoded.add(bytes);
+                offset += bytes.length;
+            }
+            for (int t : table) {
+                out.writeInt(t);
+            }
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+        }
+        return index.toByteArray();
+    }
+
+    //A master file record: name [ttl] [IN] type data
+    private static void addRecord(Map<String, RecordSet> sets, String[] f, int defaultTtl) {
+        int i = 1;
+        int ttl = defaultTtl;
+        if (i < f.length && f[i].matches("\\d+")) {
+            ttl = Integer.parseInt(f[i++]);
+        }
+        if (i < f.length && f[i].equalsIgnoreCase("IN")) {
+            i++;
+        }
+        if (i + 1 >= f.length) {
+            throw new IllegalArgumentException("expected name [ttl] [IN] type data");
+        }
+        int code = DNSResponse.getTypeCode(f[i].toUpperCase());
+        String type = code < 0 ? "" : DNSResponse.getType(code);
+        if (type.equals("")) {
+            throw new IllegalArgumentException("unsupported record type " + f[i]);
+        }
+        String[] fields = Arrays.copyOfRange(f, i + 1, f.length);
+        if (type.equals("A") || type.equals("AAAA")) {
+            DNSMessageWriter.parseAddress(fields[0]);
+        } else if (!type.equals("TXT") && !type.startsWith("TYPE")) {
+            // names in the data the way they come off the wire, without the trailing dot
+            for (int j = 0; j < fields.length; j++) {
+                if (fields[j].length() > 1 && fields[j].endsWith(".")) {
+                    fields[j] = fields[j].substring(0, fields[j].length() - 1);
+                }
+            }
+        }
+        String data = String.join(" ", fields);
+        // an SOA record has to decode the way it will be read back
+        CacheSnapshot.toRecord(f[0], type, data, Resolver.CLASS_IN, ttl);
+        add(sets, f[0], type, ttl, data);
+    }
+
+    private static void add(Map<String, RecordSet> sets, String name, String type, int ttl, String data) {
+        byte[] key = key(reverse(ResponseRecord.normalizeName(name)).getBytes(StandardCharsets.UTF_8), type);
+        RecordSet set = sets.computeIfAbsent(new String(key, StandardCharsets.ISO_8859_1), k -> new RecordSet(key));
+        if (!set.data.contains(data)) {
+            set.data.add(data);
+        }
+        set.ttl = Math.min(set.ttl, ttl);
+    }
+
+    private static byte[] encode(RecordSet set) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(set.key.length);
+        out.write(set.key);
+        out.writeInt(set.ttl);
+        out.writeShort(set.data.size());
+        for (String data : set.data) {
+            CacheSnapshot.writeString(out, data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] key(byte[] reversed, String type) {
+        byte[] t = type.getBytes(StandardCharsets.UTF_8);
+        byte[] key = Arrays.copyOf(reversed, reversed.length + 1 + t.length);
+        System.arraycopy(t, 0, key, reversed.length + 1, t.length);
+        return key;
+    }
+
+    //www.example.com becomes com.example.www
+    static String reverse(String name) {
+        if (name.length() == 0) {
+            return name;
+        }
+        String[] labels = name.split("\\.");
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = labels.length - 1; i >= 0; i--) {
+            sb.append(labels[i]);
+            if (i > 0) {
+                sb.append('.');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isAddress(String s) {
+        return s.indexOf(':') >= 0 || IPV4.matcher(s).matches();
+    }
+
+    //For names from a hosts file, which have no zone of their own to take an SOA record from
+    private static SOARecord defaultSOA(String name) {
+        return new SOARecord(name, Resolver.CLASS_IN, DEFAULT_TTL, 0, "localhost", "hostmaster.localhost",
+                1, 7200, 900, 1209600, 300);
+    }
+}
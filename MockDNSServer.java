@@ -0,0 +1,302 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// A stand-in authoritative name server for testing and benchmarking. It serves a set of
+// zones out of the records of a MockHierarchy: names below a delegation get a referral
+// with glue, names in the zone get an authoritative answer (following CNAMEs inside the
+// zone), and everything else gets NXDOMAIN or NODATA with the zone's SOA record. Faults
+// can be injected: a fixed latency, a percentage of dropped queries and a percentage of
+// responses that are cut short with the TC bit set.
+//
+// Over UDP responses are cut short with the TC bit at 512 bytes, or at the payload size
+// the query offers in an OPT record, up to MAX_EDNS_SIZE. The server also listens on TCP
+// on the same address and port, answers every query on a connection in turn, whole, and
+// closes connections that are idle for TCP_IDLE_MS.
+
+public class MockDNSServer implements Closeable {
+    private static final int MAX_UDP_SIZE = 512;
+    private static final int MAX_EDNS_SIZE = 4096;
+    private static final int MAX_TCP_SIZE = 65535;
+    private static final int TCP_IDLE_MS = 5000;
+    private static final int MAX_CHAIN = 8;
+
+    private final String address;
+    private final List<String> zones;
+    private final MockHierarchy hierarchy;
+    private final DatagramSocket socket;
+    private final ServerSocket tcpSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Thread receiver;
+    private final ScheduledExecutorService delayed;
+    private final Random rnd = new Random();
+
+    private volatile long latencyMs = 0;
+    private volatile double lossPercent = 0;
+    private volatile double truncatePercent = 0;
+
+    public MockDNSServer(String address, int port, List<String> zones, MockHierarchy hierarchy) throws IOException {
+        this.address = address;
+        this.zones = new ArrayList<String>();
+        for (String zone : zones) {
+            this.zones.add(ResponseRecord.normalizeName(zone));
+        }
+        this.hierarchy = hierarchy;
+        this.socket = new DatagramSocket(new InetSocketAddress(address, port));
+        try {
+            this.tcpSocket = new ServerSocket();
+            this.tcpSocket.setReuseAddress(true);
+            this.tcpSocket.bind(new InetSocketAddress(address, socket.getLocalPort()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.delayed = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mock-dns-" + address + "-delay");
+            t.setDaemon(true);
+            return t;
+        });
+        this.receiver = new Thread(this::serve, "mock-dns-" + address);
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+        Thread acceptor = new Thread(this::accept, "mock-dns-" + address + "-tcp");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public List<String> getZones() {
+        return zones;
+    }
+
+    public void setLatency(long ms) {
+        latencyMs = ms;
+    }
+
+    public void setLoss(double percent) {
+        lossPercent = percent;
+    }
+
+    public void setTruncation(double percent) {
+        truncatePercent = percent;
+    }
+
+    public void close() {
+        socket.close();
+        try {
+            tcpSocket.close();
+            for (Socket s : connections) {
+                s.close();
+            }
+        } catch (IOException e) {
+            // closing anyway
+        }
+        delayed.shutdownNow();
+    }
+
+    private void serve() {
+        byte[] buf = new byte[MAX_UDP_SIZE];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            if (rnd.nextDouble() * 100 < lossPercent) {
+                continue;
+            }
+            byte[] reply;
+            try {
+                DNSResponse query = new DNSResponse(Arrays.copyOf(packet.getData(), packet.getLength()), packet.getLength());
+                reply = answer(query, rnd.nextDouble() * 100 < truncatePercent);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            DatagramPacket response = new DatagramPacket(reply, reply.length, packet.getSocketAddress());
+            if (latencyMs > 0) {
+                delayed.schedule(() -> send(response), latencyMs, TimeUnit.MILLISECONDS);
+            } else {
+                send(response);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!tcpSocket.isClosed()) {
+            Socket s;
+            try {
+                s = tcpSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.add(s);
+            Thread t = new Thread(() -> serveTcp(s), "mock-dns-" + address + "-conn");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    //Answer the queries on a connection one after the other, each as a two byte length
+    //followed by the message
+    private void serveTcp(Socket s) {
+        try (Socket connection = s) {
+            connection.setSoTimeout(TCP_IDLE_MS);
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            while (true) {
+                byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+                byte[] reply;
+                try {
+                    reply = answer(new DNSResponse(message, message.length), false, MAX_TCP_SIZE);
+                } catch (RuntimeException e) {
+                    return;
+                }
+                if (latencyMs > 0) {
+                    Thread.sleep(latencyMs);
+                }
+                out.writeShort(reply.length);
+                out.write(reply);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // idle, closed by the client, or shutting down
+        } finally {
+            connections.remove(s);
+        }
+    }
+
+    private void send(DatagramPacket response) {
+        try {
+            socket.send(response);
+        } catch (IOException e) {
+            // the client will retransmit
+        }
+    }
+
+    //Build the response to a query over UDP
+    byte[] answer(DNSResponse query, boolean truncate) {
+        int payload = query.getUdpPayloadSize();
+        return answer(query, truncate, Math.max(MAX_UDP_SIZE, Math.min(payload, MAX_EDNS_SIZE)));
+    }
+
+    //Build the response to a query, cutting it short with the TC bit at maxSize bytes
+    byte[] answer(DNSResponse query, boolean truncate, int maxSize) {
+        String qName = ResponseRecord.normalizeName(query.getQName());
+        int qType = query.getQuestionType();
+        String type = DNSResponse.getType(qType);
+        DNSMessageWriter out = new DNSMessageWriter(maxSize);
+
+        String zone = findZone(qName);
+        if (zone == null) {
+            out.header(query.getQueryID(), DNSMessageWriter.FLAG_QR | 5);     // REFUSED
+            out.question(qName, qType, Resolver.CLASS_IN);
+            return out.toByteArray();
+        }
+
+        List<ResponseRecord> answers = new ArrayList<ResponseRecord>();
+        List<ResponseRecord> authority = new ArrayList<ResponseRecord>();
+        List<ResponseRecord> additional = new ArrayList<ResponseRecord>();
+        int flags = DNSMessageWriter.FLAG_QR;
+
+        String cut = findCut(qName, zone);
+        if (cut != null) {
+            // referral to the servers of the child zone, with glue only for the servers
+            // that are inside it
+            authority.addAll(hierarchy.getRecords(cut, "NS"));
+            for (ResponseRecord ns : authority) {
+                String server = ResponseRecord.normalizeName(ns.getData());
+                if (ResponseRecord.isInZone(server, cut)) {
+                    additional.addAll(hierarchy.getRecords(server, "A"));
+                    additional.addAll(hierarchy.getRecords(server, "AAAA"));
+                }
+            }
+        } else {
+            flags |= DNSMessageWriter.FLAG_AA;
+            String name = qName;
+            for (int i = 0; i < MAX_CHAIN; i++) {
+                List<ResponseRecord> alias = hierarchy.getRecords(name, "CN");
+                if (alias.isEmpty() || type.equals("CN")) {
+                    answers.addAll(hierarchy.getRecords(name, type));
+                    break;
+                }
+                answers.addAll(alias);
+                name = ResponseRecord.normalizeName(alias.get(0).getData());
+                if (!zone.equals(findZone(name)) || findCut(name, zone) != null) {
+                    break;      // the rest of the chain is for someone else to answer
+                }
+            }
+            if (answers.isEmpty()) {
+                if (!hierarchy.nameExists(qName)) {
+                    flags |= NegativeCache.NXDOMAIN;
+                }
+                authority.add(hierarchy.getSOA(zone));
+            }
+        }
+
+        boolean edns = query.getUdpPayloadSize() > 0;
+        out.header(query.getQueryID(), flags);
+        if (edns) {
+            out.reserveOpt();
+        }
+        out.question(qName, qType, Resolver.CLASS_IN);
+        if (truncate) {
+            out.setFlags(DNSMessageWriter.FLAG_TC);
+        } else if (!writeAll(out, DNSResponse.SECTION_ANSWER, answers)
+                || !writeAll(out, DNSResponse.SECTION_AUTHORITY, authority)) {
+            out.setFlags(DNSMessageWriter.FLAG_TC);
+        } else {
+            // glue that does not fit is simply left out
+            writeAll(out, DNSResponse.SECTION_ADDITIONAL, additional);
+        }
+        if (edns) {
+            out.opt(MAX_EDNS_SIZE);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean writeAll(DNSMessageWriter out, int section, List<ResponseRecord> records) {
+        for (ResponseRecord rr : records) {
+            if (!out.record(section, rr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //The longest of our zones that name is in, or null if we are not authoritative for it
+    private String findZone(String name) {
+        String best = null;
+        for (String zone : zones) {
+            if (ResponseRecord.isInZone(name, zone) && (best == null || zone.length() > best.length())) {
+                best = zone;
+            }
+        }
+        return best;
+    }
+
+    //The highest delegation below zone on the way to name, or null if zone holds name itself
+    private String findCut(String name, String zone) {
+        List<String> ancestors = new ArrayList<String>();
+        String n = name;
+        while (!n.equals(zone) && n.length() > 0) {
+            ancestors.add(0, n);
+            int dot = n.indexOf('.');
+            n = dot < 0 ? "" : n.substring(dot + 1);
+        }
+        for (String candidate : ancestors) {
+            if (!hierarchy.getRecords(candidate, "NS").isEmpty()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.*;
+import java.util.*;
+
+// A whole stand-in DNS tree (root, TLD and zone servers) running in this process on
+// loopback addresses, so the resolver can be tested and benchmarked without touching the
+// real root servers. Every server listens on the same port on its own address. The tree
+// is read from a config file with one entry per line:
+//
+//   server <address> <zone> [<zone> ...]     a server and the zones it is authoritative for
+//   fault <address> latency=<ms> loss=<percent> truncate=<percent>
+//   <name> <ttl> <type> <data>               a record of any type DNSResponse names
+//
+// Lines starting with # are comments. A zone without an SOA record gets a default one.
+// Run on its own with: java MockHierarchy config [port]
+
+public class MockHierarchy implements Closeable {
+    public static final int DEFAULT_PORT = 10053;
+
+    private final Map<String, List<ResponseRecord>> records = new HashMap<String, List<ResponseRecord>>();
+    private final Set<String> names = new HashSet<String>();     // every owner name and its ancestors
+    private final List<MockDNSServer> servers = new ArrayList<MockDNSServer>();
+    private final int port;
+
+    public MockHierarchy(String configFile, int port) throws IOException {
+        this.port = port;
+        List<String[]> serverLines = new ArrayList<String[]>();
+        List<String[]> faultLines = new ArrayList<String[]>();
+        try (BufferedReader in = new BufferedReader(new FileReader(configFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields[0].equals("server") && fields.length >= 3) {
+                    serverLines.add(fields);
+                } else if (fields[0].equals("fault") && fields.length >= 2) {
+                    faultLines.add(fields);
+                } else if (fields.length >= 4) {
+                    addRecord(fields);
+                } else {
+                    throw new IOException(configFile + ":" + lineNumber + ": cannot parse \"" + line + "\"");
+                }
+            }
+        }
+
+        try {
+            for (String[] fields : serverLines) {
+                servers.add(new MockDNSServer(fields[1], port,
+                        Arrays.asList(Arrays.copyOfRange(fields, 2, fields.length)), this));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (String[] fields : faultLines) {
+            MockDNSServer server = getServer(fields[1]);
+            if (server == null) {
+                throw new IOException("fault for unknown server " + fields[1]);
+            }
+            for (int i = 2; i < fields.length; i++) {
+                String[] setting = fields[i].split("=");
+                double value = Double.parseDouble(setting[1]);
+                if (setting[0].equals("latency")) {
+                    server.setLatency((long) value);
+                } else if (setting[0].equals("loss")) {
+                    server.setLoss(value);
+                } else if (setting[0].equals("truncate")) {
+                    server.setTruncation(value);
+                }
+            }
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public List<MockDNSServer> getServers() {
+        return servers;
+    }
+
+    public MockDNSServer getServer(String address) {
+        for (MockDNSServer server : servers) {
+            if (server.getAddress().equals(address)) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    //Addresses of the servers that are authoritative for the root zone
+    public List<String> getRootServers() {
+        List<String> roots = new ArrayList<String>();
+        for (MockDNSServer server : servers) {
+            if (server.getZones().contains("")) {
+                roots.add(server.getAddress());
+            }
+        }
+        return roots;
+    }
+
+    //Every name that has records of the given type
+    public List<String> getNames(String type) {
+        List<String> found = new ArrayList<String>();
+        for (List<ResponseRecord> set : records.values()) {
+            for (ResponseRecord rr : set) {
+                if (rr.getType().equals(type) && !found.contains(rr.getName())) {
+                    found.add(rr.getName());
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    public List<ResponseRecord> getRecords(String name, String type) {
+        List<ResponseRecord> set = records.get(ResponseRecord.normalizeName(name) + "/" + type);
+        return set != null ? set : Collections.<ResponseRecord>emptyList();
+    }
+
+    //True if the name owns records or has names below it
+    public boolean nameExists(String name) {
+        return names.contains(ResponseRecord.normalizeName(name));
+    }
+
+    public SOARecord getSOA(String zone) {
+        List<ResponseRecord> soa = getRecords(zone, "SOA");
+        if (!soa.isEmpty()) {
+            return (SOARecord) soa.get(0);
+        }
+        String host = zone.length() == 0 ? "" : "." + zone;
+        return new SOARecord(zone, Resolver.CLASS_IN, 3600, 0, "ns" + host, "hostmaster" + host,
+                1, 7200, 900, 1209600, 300);
+    }
+
+    public void close() {
+        for (MockDNSServer server : servers) {
+            server.close();
+        }
+    }
+
+    private void addRecord(String[] fields) throws IOException {
+        String name = ResponseRecord.normalizeName(fields[0]);
+        int ttl = Integer.parseInt(fields[1]);
+        String type = fields[2].equalsIgnoreCase("CNAME") ? "CN" : fields[2].toUpperCase();
+        String data = String.join(" ", Arrays.copyOfRange(fields, 3, fields.length));
+        ResponseRecord rr;
+        if (type.equals("SOA")) {
+            if (fields.length != 10) {
+                throw new IOException("SOA for " + name + " needs mname rname serial refresh retry expire minimum");
+            }
+            rr = new SOARecord(name, Resolver.CLASS_IN, ttl, 0, fields[3], fields[4], Long.parseLong(fields[5]),
+                    Long.parseLong(fields[6]), Long.parseLong(fields[7]), Long.parseLong(fields[8]),
+                    Long.parseLong(fields[9]));
+        } else if (DNSResponse.getTypeCode(type) > 0) {
+            rr = new ResponseRecord(name, type, Resolver.CLASS_IN, ttl, 0, data);
+        } else {
+            throw new IOException("unsupported record type " + fields[2]);
+        }
+        records.computeIfAbsent(name + "/" + type, k -> new ArrayList<ResponseRecord>()).add(rr);
+        for (String n = name; ; ) {
+            names.add(n);
+            if (n.length() == 0) {
+                break;
+            }
+            int dot = n.indexOf('.');
+            n = dot < 0 ? "" : n.substring(dot + 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java MockHierarchy config [port]");
+            return;
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        MockHierarchy hierarchy = new MockHierarchy(args[0], port);
+        System.out.println("serving " + hierarchy.getServers().size() + " servers on port " + port
+                + ", root " + hierarchy.getRootServers());
+        Thread.currentThread().join();
+    }
+}
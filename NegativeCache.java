@@ -0,0 +1,112 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Caches negative answers as described in RFC 2308. A name error (NXDOMAIN) is stored for
+// the name as a whole and covers every type, while a NODATA answer (the name exists but
+// has no records of the type asked for) is stored for that name and type only. Entries
+// live for the smaller of the SOA record's ttl and its minimum field. Like AnswerCache the
+// entries are kept in a StripedLruMap so that threads do not queue on one lock.
+
+public class NegativeCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final int NXDOMAIN = 3;
+    public static final int NODATA = 0;
+
+    private static final String ANY_TYPE = "*";
+
+    private final StripedLruMap<Entry> entries;
+
+    public static class Entry {
+        private final int rCode;
+        private final SOARecord soa;
+        private final long expires;     // absolute expiry time in ms
+
+        Entry(int rCode, SOARecord soa, long expires) {
+            this.rCode = rCode;
+            this.soa = soa;
+            this.expires = expires;
+        }
+
+        //NXDOMAIN or NODATA
+        public int getRCode() {
+            return rCode;
+        }
+
+        public SOARecord getSOA() {
+            return soa;
+        }
+
+        public int getTtl() {
+            return (int) Math.max(0, (expires - System.currentTimeMillis()) / 1000);
+        }
+    }
+
+    public NegativeCache(int maxEntries) {
+        this.entries = new StripedLruMap<Entry>(maxEntries);
+    }
+
+    //Get the negative answer cached for this name and type, or null if there is none
+    public Entry get(String name, String type) {
+        Entry entry = get(key(name, ANY_TYPE));
+        return entry != null ? entry : get(key(name, type));
+    }
+
+    //Remember a negative answer. Answers without an SOA record are not cached (RFC 2308 section 5).
+    public void put(String name, String type, int rCode, SOARecord soa) {
+        if (soa == null || soa.getNegativeTtl() <= 0) {
+            return;
+        }
+        String key = key(name, rCode == NXDOMAIN ? ANY_TYPE : type);
+        entries.put(key, new Entry(rCode, soa, System.currentTimeMillis() + soa.getNegativeTtl() * 1000L));
+    }
+
+    //Write every entry to a snapshot, see CacheSnapshot
+    void save(DataOutputStream out) throws IOException {
+        Map<String, Entry> all = new LinkedHashMap<String, Entry>();
+        entries.forEach(all::put);
+        out.writeInt(all.size());
+        for (Map.Entry<String, Entry> e : all.entrySet()) {
+            CacheSnapshot.writeString(out, e.getKey());
+            out.writeByte(e.getValue().rCode);
+            out.writeLong(e.getValue().expires);
+            CacheSnapshot.writeRecord(out, e.getValue().soa);
+        }
+    }
+
+    //Read the entries of a snapshot, keeping those that have not expired. Returns how many were kept.
+    int load(ByteBuffer in) {
+        long now = System.currentTimeMillis();
+        int count = in.getInt();
+        int loaded = 0;
+        for (int i = 0; i < count; i++) {
+            String key = CacheSnapshot.readString(in);
+            int rCode = in.get();
+            long expires = in.getLong();
+            ResponseRecord soa = CacheSnapshot.readRecord(in);
+            if (expires > now && soa instanceof SOARecord) {
+                entries.put(key, new Entry(rCode, (SOARecord) soa, expires));
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static String key(String name, String type) {
+        return ResponseRecord.normalizeName(name) + "/" + type;
+    }
+}
@@ -0,0 +1,541 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Keeps the record sets of an AnswerCache off the Java heap, for caches of millions of
+// names where a HashMap of Strings and ResponseRecords would keep the collector busy. The
+// sets are encoded close to wire format (names as length prefixed labels, types and
+// classes as shorts, addresses as their 4 or 16 raw bytes) into large direct buffers, and
+// found through an open addressing hash index that is two int arrays, so the collector
+// sees a handful of objects whatever the number of sets. Records are decoded back into
+// ResponseRecords when a set is asked for.
+//
+// The store is split into stripes with their own lock, like StripedLruMap. Each stripe
+// writes its sets one after the other into its buffer as a log and wraps around when it
+// reaches the end, evicting the oldest sets to make room, so eviction is first in first
+// out rather than least recently used. A set that is replaced or removed stays in the log,
+// marked dead, until the log comes round to it.
+//
+// A set in the log, all integers big endian:
+//
+//   int length, byte live, int hash, long expires, long lifetime, int hits,
+//   short type, short class, short name length, name,       <- the key
+//   short n, then per record: int ttl, short data length, data
+//
+// where the data of an NS, CN or PTR record is a name, that of an MX record a short and a
+// name, that of an SRV record three shorts and a name, that of an SOA record two names and
+// the five 32 bit fields, and that of any other type (TXT and the rest) its text in UTF-8.
+
+public class OffHeapRecordStore implements AnswerCache.Store {
+    static final int MAX_STRIPE_BYTES = 1 << 30;
+
+    private static final int LENGTH = 0;
+    private static final int LIVE = 4;
+    private static final int HASH = 5;
+    private static final int EXPIRES = 9;
+    private static final int LIFETIME = 17;
+    private static final int HITS = 25;
+    private static final int KEY = 29;
+
+    private final Stripe[] stripes;
+
+    // One buffer with its log and its index
+    private static class Stripe {
+        final ByteBuffer slab;
+        int head;               // where the next set is written
+        int tail;               // the oldest set in the log
+        int wrapAt;             // end of the log before it wrapped to the start of the buffer
+        boolean wrapped;
+        int logged;             // sets in the log, dead ones included
+        int live;               // sets in the index
+        int[] slots = new int[64];      // offset of the set + 1, or 0 for an empty slot
+        int[] hashes = new int[64];
+
+        Stripe(int bytes) {
+            slab = ByteBuffer.allocateDirect(bytes);
+        }
+
+        //Offset of the live set with key, or -1
+        int find(byte[] key, int hash) {
+            int mask = slots.length - 1;
+            for (int i = home(hash, mask); slots[i] != 0; i = (i + 1) & mask) {
+                if (hashes[i] == hash && keyEquals(slots[i] - 1, key)) {
+                    return slots[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        boolean keyEquals(int offset, byte[] key) {
+            int length = 6 + (slab.getShort(offset + KEY + 4) & 0xffff);
+            if (length != key.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (lower(slab.get(offset + KEY + i)) != lower(key[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void insert(int offset, int hash) {
+            if (2 * (live + 1) > slots.length) {
+                grow();
+            }
+            int mask = slots.length - 1;
+            int i = home(hash, mask);
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = offset + 1;
+            hashes[i] = hash;
+            live++;
+        }
+
+        //Take the set at offset out of the index and mark it dead
+        void delete(int offset) {
+            int hash = slab.getInt(offset + HASH);
+            int mask = slots.length - 1;
+            int i = home(hash, mask);
+            while (slots[i] != offset + 1) {
+                if (slots[i] == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // shift the rest of the run back so no lookup stops early at the hole
+            for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+                int k = home(hashes[j], mask);
+                if (((j - k) & mask) >= ((j - i) & mask)) {
+                    slots[i] = slots[j];
+                    hashes[i] = hashes[j];
+                    i = j;
+                }
+            }
+            slots[i] = 0;
+            slab.put(offset + LIVE, (byte) 0);
+            live--;
+        }
+
+        void grow() {
+            int[] oldSlots = slots;
+            int[] oldHashes = hashes;
+            slots = new int[oldSlots.length * 2];
+            hashes = new int[oldSlots.length * 2];
+            int mask = slots.length - 1;
+            for (int j = 0; j < oldSlots.length; j++) {
+                if (oldSlots[j] != 0) {
+                    int i = home(oldHashes[j], mask);
+                    while (slots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    slots[i] = oldSlots[j];
+                    hashes[i] = oldHashes[j];
+                }
+            }
+        }
+
+        //Find room for length bytes at the head of the log, evicting the oldest sets, and
+        //return where they go
+        int allocate(int length) {
+            while (true) {
+                if (logged == 0) {
+                    head = tail = 0;
+                    wrapped = false;
+                }
+                if (!wrapped) {
+                    if (head + length <= slab.capacity()) {
+                        break;
+                    }
+                    wrapAt = head;
+                    head = 0;
+                    wrapped = true;
+                }
+                if (head + length <= tail) {
+                    break;
+                }
+                evictTail();
+            }
+            int offset = head;
+            head += length;
+            logged++;
+            return offset;
+        }
+
+        void evictTail() {
+            if (slab.get(tail + LIVE) != 0) {
+                delete(tail);
+            }
+            tail += slab.getInt(tail + LENGTH);
+            logged--;
+            if (wrapped && tail == wrapAt) {
+                tail = 0;
+                wrapped = false;
+            }
+        }
+    }
+
+    //A store of about capacityBytes in total, split into stripeCount stripes rounded down to
+    //a power of two, more if a stripe would be over MAX_STRIPE_BYTES
+    public OffHeapRecordStore(long capacityBytes, int stripeCount) {
+        int n = Integer.highestOneBit(Math.max(1, stripeCount));
+        while (capacityBytes / n > MAX_STRIPE_BYTES) {
+            n *= 2;
+        }
+        int bytes = (int) (capacityBytes / n);
+        if (bytes < 4096) {
+            throw new IllegalArgumentException("off-heap cache of " + capacityBytes + " bytes is too small");
+        }
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe(bytes);
+        }
+    }
+
+    //A store with as many stripes as suit this machine
+    public OffHeapRecordStore(long capacityBytes) {
+        this(capacityBytes, Math.max(1, 4 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public AnswerCache.Entry get(String name, String type, int rClass) {
+        byte[] key = encodeKey(name, type, rClass);
+        if (key == null) {
+            return null;
+        }
+        int hash = hash(key, 0, key.length);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            int offset = stripe.find(key, hash);
+            if (offset < 0) {
+                return null;
+            }
+            int hits = stripe.slab.getInt(offset + HITS) + 1;
+            stripe.slab.putInt(offset + HITS, hits);
+            return decode(stripe.slab, offset, hits);
+        }
+    }
+
+    //Sets that cannot be encoded, such as ones of a type we do not know, are not stored
+    public void put(String name, String type, int rClass, AnswerCache.Entry entry) {
+        byte[] set = encode(name, type, rClass, entry);
+        if (set == null) {
+            return;
+        }
+        byte[] key = Arrays.copyOfRange(set, KEY, KEY + 6 + (((set[KEY + 4] & 0xff) << 8) | (set[KEY + 5] & 0xff)));
+        int hash = hash(key, 0, key.length);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            if (set.length > stripe.slab.capacity()) {
+                return;
+            }
+            int old = stripe.find(key, hash);
+            if (old >= 0) {
+                stripe.delete(old);
+            }
+            int offset = stripe.allocate(set.length);
+            ByteBuffer slab = stripe.slab.duplicate();
+            slab.position(offset);
+            slab.put(set);
+            stripe.slab.putInt(offset + HASH, hash);
+            stripe.insert(offset, hash);
+        }
+    }
+
+    public void remove(String name, String type, int rClass, AnswerCache.Entry entry) {
+        byte[] key = encodeKey(name, type, rClass);
+        if (key == null) {
+            return;
+        }
+        int hash = hash(key, 0, key.length);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            int offset = stripe.find(key, hash);
+            if (offset >= 0 && stripe.slab.getLong(offset + EXPIRES) == entry.expires) {
+                stripe.delete(offset);
+            }
+        }
+    }
+
+    public int size() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.live;
+            }
+        }
+        return total;
+    }
+
+    //Call action for every live set, oldest first within each stripe. A stripe is decoded
+    //under its lock and the action run after.
+    public void forEach(Consumer<AnswerCache.Entry> action) {
+        for (Stripe stripe : stripes) {
+            List<AnswerCache.Entry> copy = new ArrayList<AnswerCache.Entry>();
+            synchronized (stripe) {
+                int offset = stripe.tail;
+                boolean wrapped = stripe.wrapped;
+                for (int i = 0; i < stripe.logged; i++) {
+                    if (wrapped && offset == stripe.wrapAt) {
+                        offset = 0;
+                        wrapped = false;
+                    }
+                    if (stripe.slab.get(offset + LIVE) != 0) {
+                        copy.add(decode(stripe.slab, offset, stripe.slab.getInt(offset + HITS)));
+                    }
+                    offset += stripe.slab.getInt(offset + LENGTH);
+                }
+            }
+            for (AnswerCache.Entry entry : copy) {
+                action.accept(entry);
+            }
+        }
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private static int home(int hash, int mask) {
+        int h = hash * 0x9e3779b9;
+        return (h ^ (h >>> 15)) & mask;
+    }
+
+    //Names match case insensitively, so the hash folds case too
+    private static int hash(byte[] b, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + lower(b[i]);
+        }
+        return h;
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    //The key of a set as it is stored: type, class, name length and name. Null if the type
+    //or the name cannot be encoded.
+    private static byte[] encodeKey(String name, String type, int rClass) {
+        ByteBuffer out = ByteBuffer.allocate(6 + 256);
+        return putKey(out, name, type, rClass) ? Arrays.copyOf(out.array(), out.position()) : null;
+    }
+
+    private static boolean putKey(ByteBuffer out, String name, String type, int rClass) {
+        int code = DNSResponse.getTypeCode(type);
+        if (code < 0) {
+            return false;
+        }
+        out.putShort((short) code);
+        out.putShort((short) rClass);
+        int lengthAt = out.position();
+        out.putShort((short) 0);
+        String n = name.trim();
+        if (n.endsWith(".")) {
+            n = n.substring(0, n.length() - 1);
+        }
+        if (!putName(out, n)) {
+            return false;
+        }
+        out.putShort(lengthAt, (short) (out.position() - lengthAt - 2));
+        return true;
+    }
+
+    //A whole set in its stored layout, or null if it cannot be encoded
+    private static byte[] encode(String name, String type, int rClass, AnswerCache.Entry entry) {
+        if (entry.records.size() > 0xffff) {
+            return null;
+        }
+        // at most two names of 255 bytes and the SOA fields per record, or the text
+        int size = KEY + 6 + 255 + 2;
+        for (ResponseRecord rr : entry.records) {
+            size += 6 + 2 * 255 + 20 + 3 * rr.getData().length();
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.position(KEY);
+        if (!putKey(out, name, type, rClass)) {
+            return null;
+        }
+        out.putShort((short) entry.records.size());
+        try {
+            for (ResponseRecord rr : entry.records) {
+                out.putInt(rr.getTtl());
+                int lengthAt = out.position();
+                out.putShort((short) 0);
+                if (!putData(out, rr)) {
+                    return null;
+                }
+                out.putShort(lengthAt, (short) (out.position() - lengthAt - 2));
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        out.putInt(LENGTH, out.position());
+        out.put(LIVE, (byte) 1);
+        out.putLong(EXPIRES, entry.expires);
+        out.putLong(LIFETIME, entry.lifetime);
+        out.putInt(HITS, entry.hits.get());
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static boolean putData(ByteBuffer out, ResponseRecord rr) {
+        String type = rr.getType();
+        if (type.equals("A") || type.equals("AAAA")) {
+            byte[] address = DNSMessageWriter.parseAddress(rr.getData());
+            if (address.length != (type.equals("A") ? 4 : 16)) {
+                return false;
+            }
+            out.put(address);
+            return true;
+        } else if (type.equals("NS") || type.equals("CN") || type.equals("PTR")) {
+            return putName(out, rr.getData());
+        } else if (type.equals("MX") || type.equals("SRV")) {
+            String[] fields = rr.getData().trim().split("\\s+");
+            if (fields.length != (type.equals("MX") ? 2 : 4)) {
+                return false;
+            }
+            for (int i = 0; i < fields.length - 1; i++) {
+                out.putShort((short) Integer.parseInt(fields[i]));
+            }
+            return putName(out, fields[fields.length - 1]);
+        } else if (rr instanceof SOARecord) {
+            SOARecord soa = (SOARecord) rr;
+            if (!putName(out, soa.getMName()) || !putName(out, soa.getRName())) {
+                return false;
+            }
+            out.putInt((int) soa.getSerial());
+            out.putInt((int) soa.getRefresh());
+            out.putInt((int) soa.getRetry());
+            out.putInt((int) soa.getExpire());
+            out.putInt((int) soa.getMinimum());
+            return true;
+        } else if (type.equals("SOA")) {
+            return false;
+        }
+        byte[] text = rr.getData().getBytes(StandardCharsets.UTF_8);
+        if (text.length > 0xffff) {
+            return false;
+        }
+        out.put(text);
+        return true;
+    }
+
+    //Write name as labels, each a length byte and its characters, ending with an empty one
+    private static boolean putName(ByteBuffer out, String name) {
+        if (name.length() > 253) {
+            return false;
+        }
+        int from = 0;
+        while (from < name.length()) {
+            int dot = name.indexOf('.', from);
+            int to = dot < 0 ? name.length() : dot;
+            if (to == from || to - from > 63) {
+                return false;
+            }
+            out.put((byte) (to - from));
+            for (int i = from; i < to; i++) {
+                out.put((byte) name.charAt(i));
+            }
+            from = to + 1;
+        }
+        out.put((byte) 0);
+        return true;
+    }
+
+    private static AnswerCache.Entry decode(ByteBuffer slab, int offset, int hits) {
+        long expires = slab.getLong(offset + EXPIRES);
+        long lifetime = slab.getLong(offset + LIFETIME);
+        String type = DNSResponse.getType(slab.getShort(offset + KEY) & 0xffff);
+        int rClass = slab.getShort(offset + KEY + 2) & 0xffff;
+        StringBuilder sb = new StringBuilder();
+        int pos = offset + KEY + 6;
+        String name = getName(slab, pos, sb);
+        pos += slab.getShort(offset + KEY + 4) & 0xffff;
+        int n = slab.getShort(pos) & 0xffff;
+        pos += 2;
+        List<ResponseRecord> records = new ArrayList<ResponseRecord>(n);
+        for (int i = 0; i < n; i++) {
+            int ttl = slab.getInt(pos);
+            int length = slab.getShort(pos + 4) & 0xffff;
+            pos += 6;
+            records.add(decodeRecord(slab, pos, length, name, type, rClass, ttl, sb));
+            pos += length;
+        }
+        return new AnswerCache.Entry(records, expires, lifetime, hits);
+    }
+
+    private static ResponseRecord decodeRecord(ByteBuffer slab, int pos, int length, String name, String type,
+                                               int rClass, int ttl, StringBuilder sb) {
+        String data;
+        if (type.equals("A")) {
+            sb.setLength(0);
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                sb.append(slab.get(pos + i) & 0xff);
+            }
+            data = sb.toString();
+        } else if (type.equals("AAAA")) {
+            sb.setLength(0);
+            for (int i = 0; i < 16; i += 2) {
+                if (i > 0) {
+                    sb.append(':');
+                }
+                sb.append(Integer.toHexString(slab.getShort(pos + i) & 0xffff));
+            }
+            data = sb.toString();
+        } else if (type.equals("SOA")) {
+            String mName = getName(slab, pos, sb);
+            pos = skipName(slab, pos);
+            String rName = getName(slab, pos, sb);
+            pos = skipName(slab, pos);
+            return new SOARecord(name, rClass, ttl, length, mName, rName, u32(slab, pos), u32(slab, pos + 4),
+                    u32(slab, pos + 8), u32(slab, pos + 12), u32(slab, pos + 16));
+        } else if (type.equals("NS") || type.equals("CN") || type.equals("PTR")) {
+            data = getName(slab, pos, sb);
+        } else if (type.equals("MX")) {
+            data = (slab.getShort(pos) & 0xffff) + " " + getName(slab, pos + 2, sb);
+        } else if (type.equals("SRV")) {
+            data = (slab.getShort(pos) & 0xffff) + " " + (slab.getShort(pos + 2) & 0xffff) + " "
+                    + (slab.getShort(pos + 4) & 0xffff) + " " + getName(slab, pos + 6, sb);
+        } else {
+            byte[] text = new byte[length];
+            ByteBuffer in = slab.duplicate();
+            in.position(pos);
+            in.get(text);
+            data = new String(text, StandardCharsets.UTF_8);
+        }
+        return new ResponseRecord(name, type, rClass, ttl, length, data);
+    }
+
+    private static String getName(ByteBuffer slab, int pos, StringBuilder sb) {
+        sb.setLength(0);
+        for (int len = slab.get(pos) & 0xff; len != 0; len = slab.get(pos) & 0xff) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int k = 1; k <= len; k++) {
+                sb.append((char) (slab.get(pos + k) & 0xff));
+            }
+            pos += len + 1;
+        }
+        return sb.toString();
+    }
+
+    private static int skipName(ByteBuffer slab, int pos) {
+        for (int len = slab.get(pos) & 0xff; len != 0; len = slab.get(pos) & 0xff) {
+            pos += len + 1;
+        }
+        return pos + 1;
+    }
+
+    private static long u32(ByteBuffer slab, int pos) {
+        return slab.getInt(pos) & 0xffffffffL;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.*;
+
+// The outcome of resolving a name: the answer records, or one of the error codes
+// DNSlookup has always printed in place of the ttl.
+
+public class ResolutionResult {
+    public static final int OK = 0;
+    public static final int NAME_NOT_FOUND = -1;    // NXDOMAIN
+    public static final int TOO_MANY_QUERIES = -2;
+    public static final int TIMED_OUT = -3;
+    public static final int OTHER_ERROR = -4;       // NODATA, SERVFAIL, lame servers and so on
+
+    private final String name;
+    private final String type;
+    private final int status;
+    private final List<ResponseRecord> records;
+    private final List<ResponseRecord> aliases;
+
+    public ResolutionResult(String name, String type, List<ResponseRecord> records) {
+        this(name, type, OK, Collections.<ResponseRecord>emptyList(), records);
+    }
+
+    public ResolutionResult(String name, String type, int status) {
+        this(name, type, status, Collections.<ResponseRecord>emptyList(), Collections.<ResponseRecord>emptyList());
+    }
+
+    //A result reached by following the CNAME records in aliases, in order from name
+    public ResolutionResult(String name, String type, int status, List<ResponseRecord> aliases,
+            List<ResponseRecord> records) {
+        this.name = name;
+        this.type = type;
+        this.status = status;
+        this.aliases = Collections.unmodifiableList(new ArrayList<ResponseRecord>(aliases));
+        this.records = Collections.unmodifiableList(new ArrayList<ResponseRecord>(records));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    //OK or one of the error codes
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == OK;
+    }
+
+    //The answer records, empty unless the lookup succeeded
+    public List<ResponseRecord> getRecords() {
+        return records;
+    }
+
+    //The CNAME records followed from name to the name the records belong to
+    public List<ResponseRecord> getAliases() {
+        return aliases;
+    }
+
+    //The name the answer is for: name itself, or the target of the last alias
+    public String getCanonicalName() {
+        return aliases.isEmpty() ? name : aliases.get(aliases.size() - 1).getData();
+    }
+
+    //The smallest ttl of the answer records, or the error code
+    public int getTtl() {
+        if (!isSuccess()) {
+            return status;
+        }
+        int ttl = Integer.MAX_VALUE;
+        for (ResponseRecord rr : records) {
+            ttl = Math.min(ttl, rr.getTtl());
+        }
+        return ttl;
+    }
+
+    //The data of the first answer record, 0.0.0.0 if there is none
+    public String getAddress() {
+        return records.isEmpty() ? "0.0.0.0" : records.get(0).getData();
+    }
+
+    //The result in the "name ttl address" form DNSlookup prints
+    public String toString() {
+        return name + " " + getTtl() + " " + getAddress();
+    }
+}
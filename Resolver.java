@@ -0,0 +1,934 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An iterative resolver that can be shared by any number of threads. It is built once
+// with its configuration and owns the caches, the server round trip times and the
+// transport that all of its lookups share. Lookups never block a thread: each one is a
+// small state machine that sends a query, returns, and carries on from a callback when
+// the response (or a timer) arrives. Every lookup and query is counted in its
+// ResolverMetrics. DNSlookup is a command line wrapper around it.
+//
+// Lookups of different types for the same name share the referrals from the root and top
+// level servers: those servers answer every type with the same referral, so their queries
+// may be answered by one in flight for any type. resolveAll starts the lookups of a name
+// together, so they walk the delegations once and ask the name's own servers in parallel.
+//
+// A CNAME chain in a response is followed as far as it stays in the zone of the servers
+// that sent it; a target outside that zone is looked up from the closest zone we know
+// servers for. A chain is cached with every link at the smallest TTL in it.
+// The name servers of a glueless delegation are looked up in parallel and the first
+// address found carries the lookup on; lookups of the same server name are shared.
+//
+// Names in the LocalZone, if there is one, are answered from it before anything else.
+//
+// Tracing goes through a Tracer, which records binary events in a ring buffer and leaves
+// writing them out, to a file or as text, to a thread of its own.
+
+public class Resolver implements Closeable {
+    static final int MAX_QUERIES = 30;          // give up on a name after this many lookups
+    static final int MAX_DEPTH = 4;             // how deep nameserver lookups may nest
+    static final int MAX_ALIASES = 16;          // longest CNAME chain followed
+    static final int MAX_NS_LOOKUPS = 3;        // glueless name servers of a zone looked up at once
+    static final int MAX_SENDS_PER_QUERY = 4;   // sends of one query, retransmissions included
+    static final int CLASS_IN = 1;
+    static final long LOCAL_RELOAD_MS = 1000;   // how often the local zone file is checked for changes
+
+    private final List<String> rootServers;
+    private final int port;                     // port the name servers listen on
+    private final Tracer tracer;                // null when not tracing
+    private final int raceWidth;                // how many servers to race for each query
+    private final long raceStaggerMs;           // delay between the racing sends, 0 sends them all at once
+    private final long lookupTimeoutMs;
+    private final boolean serveStale;
+    private final Path snapshotFile;
+    private final LocalZone localZone;          // null without one
+
+    private final ResolverMetrics metrics = new ResolverMetrics();
+    private final AnswerCache answerCache;
+    private final DelegationCache delegationCache;
+    private final NegativeCache negativeCache;
+    private final ServerStats serverStats = new ServerStats();
+    private final ServerHealth serverHealth = new ServerHealth();
+    private final ConcurrentHashMap<String, Lookup> nameServerLookups = new ConcurrentHashMap<String, Lookup>();
+    private final DNSTransport transport;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+
+    public static class Builder {
+        private List<String> rootServers = new ArrayList<String>();
+        private int port = DNSTransport.DNS_PORT;
+        private int ednsPayload = DNSTransport.DEFAULT_EDNS_PAYLOAD;
+        private boolean tracingOn = false;
+        private String traceFile = null;
+        private int answerCacheSize = AnswerCache.DEFAULT_MAX_ENTRIES;
+        private long offHeapCacheBytes = 0;
+        private int delegationCacheSize = DelegationCache.DEFAULT_MAX_ZONES;
+        private int negativeCacheSize = NegativeCache.DEFAULT_MAX_ENTRIES;
+        private int raceWidth = 1;
+        private long raceStaggerMs = 0;
+        private long lookupTimeoutMs = 10 * 1000;
+        private int workerThreads = Runtime.getRuntime().availableProcessors();
+        private String jmxName = null;
+        private int prefetchHits = 0;
+        private long maxStaleSeconds = 0;
+        private String snapshotFile = null;
+        private long snapshotIntervalMs = 0;
+        private String localZoneFile = null;
+        private String localZoneIndexDir = null;
+        private long metricsIntervalMs = 0;
+
+        //Add the address of a root name server. At least one is required.
+        public Builder rootServer(String address) {
+            rootServers.add(address);
+            return this;
+        }
+
+        //Send queries to this port instead of 53, for example to talk to a MockHierarchy
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        //UDP payload size offered to servers with EDNS0; bigger responses come over TCP.
+        //0 sends plain queries, which limits UDP responses to 512 bytes.
+        public Builder ednsPayloadSize(int bytes) {
+            ednsPayload = bytes;
+            return this;
+        }
+
+        //Print the queries made and responses received to stdout, from a thread of its own
+        public Builder tracing(boolean on) {
+            tracingOn = on;
+            return this;
+        }
+
+        //Write the trace to file as binary events instead, to be printed by TraceDecoder
+        public Builder traceFile(String file) {
+            traceFile = file;
+            return this;
+        }
+
+        public Builder answerCacheSize(int entries) {
+            answerCacheSize = entries;
+            return this;
+        }
+
+        //Keep the answer cache in this many bytes off the heap instead of answerCacheSize sets
+        //on it, for caches of millions of names. See OffHeapRecordStore. 0 keeps it on the heap.
+        public Builder offHeapCache(long bytes) {
+            offHeapCacheBytes = bytes;
+            return this;
+        }
+
+        public Builder delegationCacheSize(int zones) {
+            delegationCacheSize = zones;
+            return this;
+        }
+
+        public Builder negativeCacheSize(int entries) {
+            negativeCacheSize = entries;
+            return this;
+        }
+
+        //Send each query to this many of a zone's servers, staggerMs apart, and use the first answer
+        public Builder race(int width, long staggerMs) {
+            raceWidth = width;
+            raceStaggerMs = staggerMs;
+            return this;
+        }
+
+        //How long a whole lookup may take before it fails with TIMED_OUT
+        public Builder lookupTimeout(long ms) {
+            lookupTimeoutMs = ms;
+            return this;
+        }
+
+        //Threads that process responses. They never block, so the number of cores is plenty.
+        public Builder workerThreads(int threads) {
+            workerThreads = threads;
+            return this;
+        }
+
+        //Refresh cached records that were asked for at least hits times shortly before they
+        //expire, so popular names never fall out of the cache. 0 turns this off.
+        public Builder prefetch(int hits) {
+            prefetchHits = hits;
+            return this;
+        }
+
+        //Answer with records up to maxStaleSeconds past their expiry while they are looked up
+        //again in the background, as RFC 8767 describes. 0 turns this off.
+        public Builder serveStale(long maxStaleSeconds) {
+            this.maxStaleSeconds = maxStaleSeconds;
+            return this;
+        }
+
+        //Load the caches from file when starting, if it is there, and save them to it every
+        //intervalSeconds and when closing, so a restart starts warm. See CacheSnapshot.
+        public Builder snapshot(String file, long intervalSeconds) {
+            snapshotFile = file;
+            snapshotIntervalMs = intervalSeconds * 1000;
+            return this;
+        }
+
+        //Answer the names in file, a hosts or master file, from it without asking any server.
+        //The file is compiled into an index in the user's cache directory and reloaded when it
+        //changes. See LocalZone.
+        public Builder localZone(String file) {
+            return localZone(file, null);
+        }
+
+        //Like localZone(file), with the index kept in indexDir
+        public Builder localZone(String file, String indexDir) {
+            localZoneFile = file;
+            localZoneIndexDir = indexDir;
+            return this;
+        }
+
+        //Register the metrics over JMX under this object name, e.g. "DNSlookup:type=Resolver"
+        public Builder jmxName(String name) {
+            jmxName = name;
+            return this;
+        }
+
+        //Print a snapshot of the metrics to stderr this often, 0 never does
+        public Builder metricsInterval(long ms) {
+            metricsIntervalMs = ms;
+            return this;
+        }
+
+        public Resolver build() throws IOException {
+            if (rootServers.isEmpty()) {
+                throw new IllegalStateException("no root name server given");
+            }
+            return new Resolver(this);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private Resolver(Builder b) throws IOException {
+        rootServers = Collections.unmodifiableList(new ArrayList<String>(b.rootServers));
+        port = b.port;
+        tracer = b.traceFile != null ? Tracer.toFile(Paths.get(b.traceFile))
+                : b.tracingOn ? Tracer.toText(System.out) : null;
+        raceWidth = b.raceWidth;
+        raceStaggerMs = b.raceStaggerMs;
+        lookupTimeoutMs = b.lookupTimeoutMs;
+        serveStale = b.maxStaleSeconds > 0;
+        snapshotFile = b.snapshotFile != null ? Paths.get(b.snapshotFile) : null;
+        localZone = b.localZoneFile != null ? new LocalZone(b.localZoneFile, b.localZoneIndexDir) : null;
+        answerCache = b.offHeapCacheBytes > 0 ? new AnswerCache(new OffHeapRecordStore(b.offHeapCacheBytes))
+                : new AnswerCache(b.answerCacheSize);
+        answerCache.setPrefetch(b.prefetchHits, this::refresh);
+        answerCache.setServeStale(b.maxStaleSeconds, this::refresh);
+        delegationCache = new DelegationCache(b.delegationCacheSize);
+        negativeCache = new NegativeCache(b.negativeCacheSize);
+        transport = new DNSTransport(b.ednsPayload);
+        metrics.setCoalescedCounter(transport::getCoalescedCount);
+        metrics.setTcpCounters(transport::getTcpQueryCount, transport::getTcpConnectionCount);
+        metrics.setHealthCounters(serverHealth::getHeldDown, serverHealth::getChecks, serverHealth::getHits);
+        timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("dns-timer"));
+        workers = Executors.newFixedThreadPool(Math.max(1, b.workerThreads), daemonThreads("dns-worker"));
+        if (snapshotFile != null) {
+            try {
+                CacheSnapshot.load(snapshotFile, answerCache, negativeCache, delegationCache);
+            } catch (IOException e) {
+                // start cold rather than not at all
+                System.err.println("cannot load cache snapshot: " + e.getMessage());
+            }
+            if (b.snapshotIntervalMs > 0) {
+                timer.scheduleWithFixedDelay(this::saveSnapshot,
+                        b.snapshotIntervalMs, b.snapshotIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (localZone != null) {
+            timer.scheduleWithFixedDelay(this::reloadLocalZone, LOCAL_RELOAD_MS, LOCAL_RELOAD_MS, TimeUnit.MILLISECONDS);
+        }
+        if (b.jmxName != null) {
+            try {
+                metrics.register(b.jmxName);
+            } catch (javax.management.JMException e) {
+                close();
+                throw new IOException("cannot register metrics as " + b.jmxName, e);
+            }
+        }
+        if (b.metricsIntervalMs > 0) {
+            timer.scheduleAtFixedRate(() -> metrics.print(System.err),
+                    b.metricsIntervalMs, b.metricsIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //Resolve name to records of the given type ("A", "AAAA", "MX", "TYPE65", ...). The future
+    //completes once the lookup is done; it never completes exceptionally, failures are
+    //reported in the result.
+    public CompletableFuture<ResolutionResult> resolve(String name, String type) {
+        int code = DNSResponse.getTypeCode(type);
+        if (code < 0) {
+            throw new IllegalArgumentException("unsupported record type " + type);
+        }
+        // the name the records carry, CN for CNAME
+        type = DNSResponse.getType(code);
+        Lookup lookup = new Lookup(name, type, 0, System.currentTimeMillis() + lookupTimeoutMs);
+        lookup.step();
+        return lookup.result;
+    }
+
+    //Resolve name to records of each of the given types at once, for example "A" and "AAAA"
+    //for a dual-stack client. The results are in the order of the types.
+    public CompletableFuture<List<ResolutionResult>> resolveAll(String name, String... types) {
+        List<CompletableFuture<ResolutionResult>> lookups = new ArrayList<CompletableFuture<ResolutionResult>>();
+        for (String type : types) {
+            lookups.add(resolve(name, type));
+        }
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<ResolutionResult> results = new ArrayList<ResolutionResult>();
+            for (CompletableFuture<ResolutionResult> lookup : lookups) {
+                results.add(lookup.join());
+            }
+            return results;
+        });
+    }
+
+    //Look a cached set up again in the background, for prefetching and serving stale
+    private void refresh(String name, String type) {
+        metrics.refresh();
+        workers.execute(() -> {
+            Lookup lookup = new Lookup(name, type, 0, System.currentTimeMillis() + lookupTimeoutMs);
+            lookup.background = true;
+            lookup.step();
+            lookup.result.whenComplete((r, err) -> answerCache.refreshDone(name, type, CLASS_IN));
+        });
+    }
+
+    public AnswerCache getAnswerCache() {
+        return answerCache;
+    }
+
+    public DelegationCache getDelegationCache() {
+        return delegationCache;
+    }
+
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    public ServerStats getServerStats() {
+        return serverStats;
+    }
+
+    public ServerHealth getServerHealth() {
+        return serverHealth;
+    }
+
+    public ResolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void reloadLocalZone() {
+        try {
+            if (localZone.reloadIfChanged() && tracer != null) {
+                tracer.reloaded(localZone.size());
+            }
+        } catch (IOException e) {
+            // keep answering from what was there before
+            System.err.println("cannot reload local zone: " + e.getMessage());
+        }
+    }
+
+    //Save the caches to the snapshot file now
+    public void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            CacheSnapshot.save(snapshotFile, answerCache, negativeCache, delegationCache);
+        } catch (IOException e) {
+            System.err.println("cannot save cache snapshot: " + e.getMessage());
+        }
+    }
+
+    //Wait until everything traced so far has been written out
+    public void flushTrace() {
+        if (tracer != null) {
+            tracer.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        saveSnapshot();
+        metrics.unregister();
+        transport.close();
+        timer.shutdownNow();
+        workers.shutdown();
+        if (tracer != null) {
+            tracer.close();
+        }
+    }
+
+    // One lookup of a name. It starts at the closest zone we know servers for and follows
+    // referrals and CNAMEs from there, checking the caches before every query.
+    private class Lookup {
+        final String fqdn;
+        final String type;
+        final int depth;
+        final long deadline;
+        final CompletableFuture<ResolutionResult> result = new CompletableFuture<ResolutionResult>();
+        final long started = System.nanoTime();
+        String name;
+        List<String> servers;
+        String zone;            // the zone servers are for, "" for the root
+        boolean shareReferral = true;   // the next query may share a referral with another type
+        int queries = 0;
+        int hops = 0;           // queries sent, including those of nameserver lookups
+        boolean background = false; // a refresh of the cached answer for fqdn, which it must not use
+        final List<ResponseRecord> aliases = new ArrayList<ResponseRecord>();
+
+        Lookup(String fqdn, String type, int depth, long deadline) {
+            this.fqdn = fqdn;
+            this.type = type;
+            this.depth = depth;
+            this.deadline = deadline;
+            startAt(fqdn);
+        }
+
+        //Go on with name from the closest zone we know servers for
+        void startAt(String name) {
+            this.name = name;
+            servers = new ArrayList<String>();
+            zone = getStartServers(name, servers);
+        }
+
+        //Answer from the caches for as long as possible, then send the next query
+        void step() {
+            while (true) {
+                if (queries++ >= MAX_QUERIES) {
+                    finish(ResolutionResult.TOO_MANY_QUERIES);
+                    return;
+                }
+                if (localZone != null) {
+                    LocalZone.Answer local = localZone.lookup(name, type);
+                    if (local != null) {
+                        metrics.localAnswer();
+                        trace(Tracer.LOCAL);
+                        List<ResponseRecord> records = local.getRecords();
+                        if (records.isEmpty()) {
+                            // negative answers go through the negative cache, which keeps
+                            // their SOA record for the daemon's response
+                            int rCode = local.getRCode() == NegativeCache.NXDOMAIN
+                                    ? NegativeCache.NXDOMAIN : NegativeCache.NODATA;
+                            negativeCache.put(name, type, rCode, local.getSOA());
+                            finish(rCode == NegativeCache.NXDOMAIN
+                                    ? ResolutionResult.NAME_NOT_FOUND : ResolutionResult.OTHER_ERROR);
+                            return;
+                        }
+                        if (records.get(0).getType().equals(type)) {
+                            finish(records);
+                            return;
+                        }
+                        aliases.add(records.get(0));
+                        startAt(records.get(0).getData());
+                        continue;
+                    }
+                }
+                NegativeCache.Entry negative = negativeCache.get(name, type);
+                if (negative != null) {
+                    metrics.negativeCacheHit();
+                    trace(Tracer.NEGATIVE);
+                    finish(negative.getRCode() == NegativeCache.NXDOMAIN
+                            ? ResolutionResult.NAME_NOT_FOUND : ResolutionResult.OTHER_ERROR);
+                    return;
+                }
+                if (background && name.equals(fqdn)) {
+                    break;
+                }
+                List<ResponseRecord> cached = answerCache.get(name, type, CLASS_IN);
+                if (cached != null) {
+                    metrics.cacheHit();
+                    trace(Tracer.HIT);
+                    finish(cached);
+                    return;
+                }
+                cached = answerCache.get(name, "CN", CLASS_IN);
+                if (cached == null) {
+                    metrics.cacheMiss();
+                    trace(Tracer.MISS);
+                    break;
+                }
+                metrics.cacheHit();
+                trace(Tracer.ALIAS);
+                aliases.add(cached.get(0));
+                startAt(cached.get(0).getData());
+            }
+
+            if (serveStale && depth == 0 && !background) {
+                // an expired answer is better than making the client wait, and getStale
+                // has it looked up again
+                List<ResponseRecord> stale = answerCache.getStale(name, type, CLASS_IN);
+                if (stale != null) {
+                    metrics.staleAnswer();
+                    trace(Tracer.STALE);
+                    // not through finish, which would cache a chain leading to it afresh
+                    complete(new ResolutionResult(fqdn, type, ResolutionResult.OK, aliases, stale));
+                    return;
+                }
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                finish(ResolutionResult.TIMED_OUT);
+                return;
+            }
+            hops++;
+            // only servers of the root and the top level domains can be counted on for referrals
+            boolean shared = shareReferral && labels(zone) <= 1;
+            shareReferral = true;
+            new HopQuery(servers, zone, name, DNSResponse.getTypeCode(type), shared, deadline).start()
+                    .whenCompleteAsync((res, err) -> {
+                        try {
+                            if (err != null) {
+                                finish(err instanceof TimeoutException || err.getCause() instanceof TimeoutException
+                                        ? ResolutionResult.TIMED_OUT : ResolutionResult.OTHER_ERROR);
+                            } else {
+                                handle(res);
+                            }
+                        } catch (RuntimeException e) {
+                            finish(ResolutionResult.OTHER_ERROR);
+                        }
+                    }, workers);
+        }
+
+        void handle(DNSResponse res) {
+            answerCache.put(res, zone);
+            delegationCache.put(res, zone);
+
+            if (res.getRCode() != 0 && res.getRCode() != NegativeCache.NXDOMAIN) {
+                finish(ResolutionResult.OTHER_ERROR);
+                return;
+            }
+            if (res.getQuestionType() != DNSResponse.getTypeCode(type) && res.getRCode() == 0
+                    && (res.isAuthoritative() || !res.getAnswers().isEmpty())) {
+                // a response shared from a lookup of another type that turned out to be an
+                // answer rather than a referral, so ask the same servers for ours
+                shareReferral = false;
+                step();
+                return;
+            }
+
+            // walk the CNAME chain in the answers for as long as it stays inside the zone of
+            // the servers that sent them, a target outside it is looked up from its own zone
+            List<ResponseRecord> answers = findRecords(res.getAnswers(), name, type);
+            boolean followed = false;
+            while (answers.isEmpty()) {
+                List<ResponseRecord> alias = findRecords(res.getAnswers(), name, "CN");
+                if (alias.isEmpty()) {
+                    break;
+                }
+                if (aliases.size() >= MAX_ALIASES) {
+                    finish(ResolutionResult.OTHER_ERROR);
+                    return;
+                }
+                aliases.add(alias.get(0));
+                followed = true;
+                String target = ResponseRecord.normalizeName(alias.get(0).getData());
+                if (!ResponseRecord.isInZone(target, zone)) {
+                    startAt(target);
+                    step();
+                    return;
+                }
+                name = target;
+                answers = findRecords(res.getAnswers(), name, type);
+            }
+            if (!answers.isEmpty()) {
+                finish(answers);
+                return;
+            }
+
+            if (res.getRCode() == NegativeCache.NXDOMAIN) {
+                // the name does not exist, or the name at the end of the chain does not
+                negativeCache.put(name, type, NegativeCache.NXDOMAIN, res.getSOA());
+                finish(ResolutionResult.NAME_NOT_FOUND);
+                return;
+            }
+            if (followed && res.getSOA() == null) {
+                // the servers stopped at a target they do not answer for, a delegation below
+                startAt(name);
+                step();
+                return;
+            }
+
+            // no answer, so this is a referral or the name has no records of this type
+            List<String> addresses = new ArrayList<String>();
+            List<String> glueless = new ArrayList<String>();
+            ResponseRecord firstNS = getNameServerAddresses(res, zone, addresses, glueless);
+            if (!addresses.isEmpty()) {
+                servers = addresses;
+                zone = ResponseRecord.normalizeName(firstNS.getName());
+                step();
+            } else if (!glueless.isEmpty() && depth < MAX_DEPTH) {
+                lookUpNameServers(ResponseRecord.normalizeName(firstNS.getName()), glueless);
+            } else {
+                if (firstNS == null) {
+                    negativeCache.put(name, type, NegativeCache.NODATA, res.getSOA());
+                }
+                finish(ResolutionResult.OTHER_ERROR);
+            }
+        }
+
+        //Glueless delegation to cut: look up the addresses of its name servers, up to
+        //MAX_NS_LOOKUPS of them at once, and go on with the first one found. The addresses
+        //found after that are added to the delegation for the lookups that come later.
+        void lookUpNameServers(String cut, List<String> names) {
+            final AtomicInteger pending = new AtomicInteger(names.size());
+            final AtomicBoolean continued = new AtomicBoolean(false);
+            for (String ns : names) {
+                final Lookup nsLookup = lookUpNameServer(ns, depth + 1, deadline);
+                nsLookup.result.thenAccept(r -> {
+                    if (r.isSuccess()) {
+                        delegationCache.addAddress(cut, r.getAddress(), r.getTtl());
+                        if (continued.compareAndSet(false, true)) {
+                            hops += nsLookup.hops;
+                            servers = Collections.singletonList(r.getAddress());
+                            zone = cut;
+                            step();
+                        }
+                        pending.decrementAndGet();
+                    } else if (pending.decrementAndGet() == 0 && continued.compareAndSet(false, true)) {
+                        // none of them could be found
+                        hops += nsLookup.hops;
+                        finish(r.getStatus() == ResolutionResult.TIMED_OUT
+                                ? ResolutionResult.TIMED_OUT : ResolutionResult.OTHER_ERROR);
+                    }
+                });
+            }
+        }
+
+        void finish(int status) {
+            complete(new ResolutionResult(fqdn, type, status, aliases, Collections.<ResponseRecord>emptyList()));
+        }
+
+        void finish(List<ResponseRecord> records) {
+            if (hops > 0 && !aliases.isEmpty()) {
+                cacheChain(records);
+            }
+            complete(new ResolutionResult(fqdn, type, ResolutionResult.OK, aliases, records));
+        }
+
+        //Cache the CNAMEs followed together with the records they lead to, all with the
+        //smallest TTL among them, so the chain expires as a whole instead of a link at a time
+        //and a lookup never finds half of it cached
+        private void cacheChain(List<ResponseRecord> records) {
+            int minTtl = Integer.MAX_VALUE;
+            for (ResponseRecord rr : aliases) {
+                minTtl = Math.min(minTtl, rr.getTtl());
+            }
+            for (ResponseRecord rr : records) {
+                minTtl = Math.min(minTtl, rr.getTtl());
+            }
+            List<ResponseRecord> chain = new ArrayList<ResponseRecord>(aliases.size() + records.size());
+            for (ResponseRecord rr : aliases) {
+                chain.add(rr.withTtl(minTtl));
+            }
+            for (ResponseRecord rr : records) {
+                chain.add(rr.withTtl(minTtl));
+            }
+            answerCache.put(chain);
+        }
+
+        private void trace(byte decision) {
+            if (tracer != null) {
+                tracer.cache(name, type, decision);
+            }
+        }
+
+        private void complete(ResolutionResult r) {
+            if (depth == 0 && !background) {
+                metrics.lookupDone(r.getStatus(), hops, aliases.size(), System.nanoTime() - started);
+            }
+            result.complete(r);
+        }
+    }
+
+    // One query sent to the servers of a zone. The servers are tried in order of their
+    // smoothed round trip time. The first raceWidth of them are raced: each gets the query
+    // raceStaggerMs after the one before (all at once if that is 0) and the first good
+    // answer wins. After that, a server that does not answer within its retransmission
+    // timeout, or answers with SERVFAIL or REFUSED, is followed by the next one, while late
+    // answers to earlier sends are still accepted. Queries still outstanding once there is
+    // an answer are cancelled. Fails with TimeoutException once the deadline has passed or
+    // every send went unanswered. With shareReferral the first send to each server may be
+    // answered by a query in flight for the name of another type. Servers held down for the
+    // zone by ServerHealth go after all the others and are only raced if there are no others;
+    // timeouts, failed answers and lame answers hold a server down.
+    private class HopQuery {
+        final List<String> ordered;
+        final String zone;
+        final String name;
+        final int qtype;
+        final boolean shareReferral;
+        final long deadline;
+        final int width;
+        final int maxSends;
+        final long[] sentAt;        // System.nanoTime() of each send
+        final List<CompletableFuture<DNSResponse>> sent = new ArrayList<CompletableFuture<DNSResponse>>();
+        final CompletableFuture<DNSResponse> result = new CompletableFuture<DNSResponse>();
+        ScheduledFuture<?> nextSend;
+        DNSResponse failed;
+
+        HopQuery(List<String> servers, String zone, String name, int qtype, boolean shareReferral, long deadline) {
+            List<String> healthy = new ArrayList<String>(servers.size());
+            List<String> heldDown = new ArrayList<String>();
+            for (String server : serverStats.order(servers)) {
+                long left = serverHealth.heldDownFor(server, zone);
+                if (left == 0) {
+                    healthy.add(server);
+                    continue;
+                }
+                heldDown.add(server);
+                if (tracer != null) {
+                    tracer.heldDown(server, zone, left, serverHealth.getChecks(), serverHealth.getHits());
+                }
+            }
+            this.ordered = healthy;
+            ordered.addAll(heldDown);
+            this.zone = zone;
+            this.name = name;
+            this.qtype = qtype;
+            this.shareReferral = shareReferral;
+            this.deadline = deadline;
+            this.width = Math.max(1, Math.min(raceWidth, healthy.isEmpty() ? ordered.size() : healthy.size()));
+            this.maxSends = Math.max(MAX_SENDS_PER_QUERY, width);
+            this.sentAt = new long[maxSends];
+        }
+
+        CompletableFuture<DNSResponse> start() {
+            sendNext();
+            return result;
+        }
+
+        synchronized void sendNext() {
+            if (result.isDone()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (sent.size() >= maxSends || now >= deadline) {
+                giveUp();
+                return;
+            }
+            final int index = sent.size();
+            final String server = ordered.get(index % ordered.size());
+            CompletableFuture<DNSResponse> query;
+            try {
+                // the first send to a server may share an identical query in flight, a
+                // retransmission to it has to go out again
+                InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(server), port);
+                if (shareReferral && index < ordered.size()) {
+                    query = transport.queryForReferral(address, name, qtype);
+                } else {
+                    query = transport.query(address, name, qtype, index < ordered.size());
+                }
+            } catch (IOException e) {
+                query = new CompletableFuture<DNSResponse>();
+                query.completeExceptionally(e);
+            }
+            sentAt[index] = System.nanoTime();
+            sent.add(query);
+            if (tracer != null) {
+                tracer.sent(name, qtype, server, index);
+            }
+            metrics.querySent(index >= width);
+
+            final boolean racing = index + 1 < width;
+            long wait = Math.min(deadline - now, racing ? raceStaggerMs : serverStats.getTimeout(server));
+            nextSend = timer.schedule(() -> timedOut(index, server, racing), wait, TimeUnit.MILLISECONDS);
+            query.thenAccept(res -> answered(index, res));
+        }
+
+        synchronized void timedOut(int index, String server, boolean racing) {
+            if (result.isDone() || index != sent.size() - 1) {
+                return;     // answered, or overtaken by a failed answer
+            }
+            if (!racing) {
+                metrics.timeout();
+                serverStats.timeout(server);
+                holdDown(server, Tracer.TIMEOUT);
+            }
+            sendNext();
+        }
+
+        synchronized void answered(int index, DNSResponse res) {
+            if (result.isDone()) {
+                return;
+            }
+            String answeredBy = ordered.get(index % ordered.size());
+            long rtt = System.nanoTime() - sentAt[index];
+            serverStats.update(answeredBy, rtt / 1000000);
+            metrics.response(answeredBy, res.getRCode(), rtt);
+            if (tracer != null) {
+                tracer.response(name, answeredBy, rtt, res);
+            }
+            if (res.getRCode() != 2 && res.getRCode() != 5 && !isLame(res)) {
+                serverHealth.succeeded(answeredBy, zone);
+                done();
+                result.complete(res);
+                return;
+            }
+            // SERVFAIL, REFUSED or lame, move on to the next server straight away
+            holdDown(answeredBy, isLame(res) ? Tracer.LAME : Tracer.FAILED);
+            failed = res;
+            nextSend.cancel(false);
+            sendNext();
+        }
+
+        //A server answered without authority and without a referral further down than the
+        //zone it was asked as a server of
+        private boolean isLame(DNSResponse res) {
+            if (res.getRCode() != 0 || res.isAuthoritative() || res.getSectionCount(DNSResponse.SECTION_ANSWER) > 0) {
+                return false;
+            }
+            for (ResponseRecord ns : res.findRecords(DNSResponse.SECTION_AUTHORITY, null, DNSResponse.getTypeCode("NS"))) {
+                if (ResponseRecord.isInZone(ns.getName(), zone)
+                        && !ResponseRecord.normalizeName(ns.getName()).equals(zone)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void holdDown(String server, byte why) {
+            long holdDown = serverHealth.failed(server, zone);
+            if (tracer != null) {
+                tracer.failed(why, name, server, zone, holdDown);
+            }
+        }
+
+        private void giveUp() {
+            done();
+            if (failed != null) {
+                result.complete(failed);
+            } else {
+                result.completeExceptionally(new TimeoutException("no response for " + name));
+            }
+        }
+
+        private void done() {
+            if (nextSend != null) {
+                nextSend.cancel(false);
+            }
+            for (CompletableFuture<DNSResponse> query : sent) {
+                query.cancel(false);
+            }
+        }
+    }
+
+    //Find the addresses of the name servers in a referral from the servers of zone, using glue
+    //when there is some and cached addresses otherwise. The names of servers with neither go
+    //into glueless, at most MAX_NS_LOOKUPS of them, leaving out those inside the zone delegated
+    //to, which cannot be looked up without glue. NS records for zones outside zone and glue
+    //outside it are ignored, as DelegationCache does. Returns the first NS record, or null if
+    //this is not a referral.
+    private ResponseRecord getNameServerAddresses(DNSResponse res, String zone, List<String> addresses,
+            List<String> glueless) {
+        ResponseRecord firstNS = null;
+        for (ResponseRecord ns : res.findRecords(DNSResponse.SECTION_AUTHORITY, null, DNSResponse.getTypeCode("NS"))) {
+            if (!ResponseRecord.isInZone(ns.getName(), zone)) {
+                continue;
+            }
+            if (firstNS == null) {
+                firstNS = ns;
+            }
+            List<ResponseRecord> glue = ResponseRecord.isInZone(ns.getData(), zone)
+                    ? res.findRecords(DNSResponse.SECTION_ADDITIONAL, ns.getData(), DNSResponse.getTypeCode("A"))
+                    : Collections.<ResponseRecord>emptyList();
+            List<ResponseRecord> cached = answerCache.get(ns.getData(), "A", CLASS_IN);
+            if (!glue.isEmpty()) {
+                addresses.add(glue.get(0).getData());
+            } else if (cached != null) {
+                addresses.add(cached.get(0).getData());
+            } else if (glueless.size() < MAX_NS_LOOKUPS && !ResponseRecord.isInZone(ns.getData(), ns.getName())) {
+                glueless.add(ResponseRecord.normalizeName(ns.getData()));
+            }
+        }
+        return firstNS;
+    }
+
+    //Start a lookup of the address of a name server, or join one already running for it, so
+    //zones that share servers look them up once. Only a lookup nested at least as deep as
+    //this one would be is joined: a lookup then only ever waits on deeper ones, and never on
+    //one that is waiting on it.
+    private Lookup lookUpNameServer(String ns, int depth, long deadline) {
+        Lookup running = nameServerLookups.get(ns);
+        if (running != null && running.depth >= depth) {
+            return running;
+        }
+        Lookup nsLookup = new Lookup(ns, "A", depth, deadline);
+        if (running == null && nameServerLookups.putIfAbsent(ns, nsLookup) == null) {
+            nsLookup.result.whenComplete((r, err) -> nameServerLookups.remove(ns, nsLookup));
+        }
+        nsLookup.step();
+        return nsLookup;
+    }
+
+    //Put the server addresses for the closest zone enclosing name that we have a delegation
+    //for into servers, falling back to the root name servers when none of them has a known
+    //address. Returns the zone, "" for the root.
+    private String getStartServers(String name, List<String> servers) {
+        String zone = ResponseRecord.normalizeName(name);
+        DelegationCache.Delegation d;
+        while (zone.length() > 0 && (d = delegationCache.findClosest(zone)) != null) {
+            if (!d.getAddresses().isEmpty()) {
+                servers.addAll(d.getAddresses());
+                return d.getZone();
+            }
+            for (String ns : d.getNameServers()) {
+                List<ResponseRecord> cached = answerCache.get(ns, "A", CLASS_IN);
+                if (cached != null) {
+                    delegationCache.addAddress(d.getZone(), cached.get(0).getData(), cached.get(0).getTtl());
+                    servers.add(cached.get(0).getData());
+                    return d.getZone();
+                }
+            }
+            int dot = d.getZone().indexOf('.');
+            zone = dot < 0 ? "" : d.getZone().substring(dot + 1);
+        }
+        servers.addAll(rootServers);
+        return "";
+    }
+
+    private static int labels(String zone) {
+        int n = zone.length() > 0 ? 1 : 0;
+        for (int i = 0; i < zone.length(); i++) {
+            if (zone.charAt(i) == '.') {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static List<ResponseRecord> findRecords(List<ResponseRecord> records, String name, String type) {
+        String target = ResponseRecord.normalizeName(name);
+        List<ResponseRecord> found = new ArrayList<ResponseRecord>();
+        for (ResponseRecord rr : records) {
+            if (rr.getType().equals(type) && ResponseRecord.normalizeName(rr.getName()).equals(target)) {
+                found.add(rr);
+            }
+        }
+        return found;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// A long running caching resolver that answers stub resolvers over UDP and TCP, so hosts
+// can use it as their name server and every lookup shares one warm Resolver. The daemon is
+// split into shards, one per core. Each shard has its own socket bound to the same address
+// with SO_REUSEPORT, so the kernel spreads the clients over them, and its own thread
+// reading queries off that socket with its own buffers. Queries answered from the cache
+// are answered on the shard's thread; the others are answered from the resolver thread
+// that finishes their lookup. Everything the shards share (the caches, the server round
+// trip times and the metrics) is striped or lock-free. The one thing they funnel through
+// is the receiver thread of the resolver's DNSTransport, which only matches upstream
+// responses to their queries; the lookups carry on in the resolver's worker threads.
+// Where SO_REUSEPORT is not available there is a single shard. Stubs that send an EDNS0
+// OPT record get answers of up to the payload size they offer, at most MAX_EDNS_SIZE; the
+// others get 512 bytes. An answer that does not fit has the TC bit set, and the stub asks
+// again over TCP: the daemon listens on TCP on the same address and port, with a thread
+// reading the queries off each connection and one writing the answers back, in whatever
+// order the lookups finish (RFC 7766). At most MAX_TCP_CONNECTIONS connections are served
+// at once, each with at most MAX_TCP_PIPELINE queries outstanding, and a connection with
+// nothing outstanding is closed after TCP_IDLE_MS.
+//
+//   java ResolverDaemon rootDNS [-listen address] [-port p] [-shards n] [-upstream-port p] [-edns size] [-cache size] [-offheap mb] [-prefetch n] [-stale s] [-snapshot file] [-local file] [-trace file] [-stats s]
+
+public class ResolverDaemon implements Closeable {
+    static final int MAX_UDP_SIZE = 512;
+    static final int MAX_EDNS_SIZE = DNSTransport.DEFAULT_EDNS_PAYLOAD;
+    static final int MAX_TCP_SIZE = 65535;
+    static final int MAX_TCP_CONNECTIONS = 64;
+    static final int MAX_TCP_PIPELINE = 32;     // queries read off a connection before its answers
+    static final int TCP_IDLE_MS = 10 * 1000;
+
+    static final int RCODE_FORMERR = 1;
+    static final int RCODE_SERVFAIL = 2;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int RCODE_NOTIMP = 4;
+    static final int RCODE_REFUSED = 5;
+
+    private final Resolver resolver;
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final ServerSocket tcpSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final int port;
+
+    // One socket and the thread that reads it. The buffers belong to the thread alone.
+    private class Shard implements Runnable {
+        final DatagramChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_UDP_SIZE);
+        final DNSResponse query = new DNSResponse();
+
+        Shard(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            while (channel.isOpen()) {
+                SocketAddress client;
+                in.clear();
+                try {
+                    client = channel.receive(in);
+                } catch (IOException e) {
+                    return;
+                }
+                in.flip();
+                if (!isQuery(in)) {
+                    // no answer to what is not a query, the sender may not be who it says
+                    continue;
+                }
+                try {
+                    query.parse(in);
+                    handle(query, false, reply -> send(reply, client));
+                } catch (RuntimeException e) {
+                    // whatever a crafted packet trips over, the shard has to go on serving
+                    send(error(in.getShort(0) & 0xffff, false, null, 0, RCODE_FORMERR), client);
+                }
+            }
+        }
+
+        void send(byte[] reply, SocketAddress client) {
+            try {
+                channel.send(ByteBuffer.wrap(reply), client);
+            } catch (IOException e) {
+                // the stub will retry
+            }
+        }
+    }
+
+    //Answer a query, handing the reply to reply exactly once. Everything needed is taken out
+    //of the query first, since its buffer is reused. Over TCP the answer may be as big as a
+    //TCP message can be; over UDP it is limited by what the query offers with EDNS.
+    void handle(DNSResponse query, boolean tcp, Consumer<byte[]> reply) {
+        final int id = query.getQueryID();
+        final boolean rd = query.isRecursionDesired();
+        if (query.getOpcode() != 0) {
+            reply.accept(error(id, rd, null, 0, RCODE_NOTIMP));
+            return;
+        }
+        if (query.getQuestionCount() != 1) {
+            reply.accept(error(id, rd, null, 0, RCODE_FORMERR));
+            return;
+        }
+        final String qName = query.getQName();
+        final int qType = query.getQuestionType();
+        final int payload = query.getUdpPayloadSize();
+        final int maxSize = tcp ? MAX_TCP_SIZE
+                : payload > 0 ? Math.max(MAX_UDP_SIZE, Math.min(payload, MAX_EDNS_SIZE)) : MAX_UDP_SIZE;
+        if (query.getQuestionClass() != Resolver.CLASS_IN) {
+            reply.accept(error(id, rd, qName, qType, RCODE_REFUSED));
+            return;
+        }
+        String type = DNSResponse.getType(qType);
+        if (type.equals("")) {
+            reply.accept(error(id, rd, qName, qType, RCODE_NOTIMP));
+            return;
+        }
+        resolver.resolve(qName, type).whenComplete((result, err) -> {
+            byte[] answer = null;
+            if (result != null) {
+                try {
+                    answer = answer(id, rd, qName, qType, payload > 0, maxSize, result);
+                } catch (RuntimeException e) {
+                    // a record that cannot be encoded, the stub still gets an answer
+                }
+            }
+            reply.accept(answer != null ? answer : error(id, rd, qName, qType, RCODE_SERVFAIL));
+        });
+    }
+
+    // A TCP connection from a stub. This thread reads the queries off it, the writer thread
+    // writes the answers back as their lookups finish. Each query takes a permit until its
+    // answer is written, so a stub that does not read its answers stops being read from.
+    private class TcpConnection implements Runnable {
+        final Socket socket;
+        final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]>();
+        final Semaphore permits = new Semaphore(MAX_TCP_PIPELINE);
+
+        TcpConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            Thread writer = new Thread(this::write, "dns-daemon-tcp-writer");
+            writer.setDaemon(true);
+            writer.start();
+            try {
+                socket.setSoTimeout(TCP_IDLE_MS);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DNSResponse query = new DNSResponse();
+                while (true) {
+                    int high;
+                    try {
+                        high = in.read();
+                    } catch (SocketTimeoutException e) {
+                        if (permits.availablePermits() < MAX_TCP_PIPELINE) {
+                            continue;       // idle only once everything is answered
+                        }
+                        break;
+                    }
+                    if (high < 0) {
+                        break;
+                    }
+                    byte[] message = new byte[(high << 8) | in.readUnsignedByte()];
+                    in.readFully(message);
+                    ByteBuffer packet = ByteBuffer.wrap(message);
+                    if (!isQuery(packet)) {
+                        continue;
+                    }
+                    permits.acquire();
+                    try {
+                        query.parse(packet);
+                        handle(query, true, replies::add);
+                    } catch (RuntimeException e) {
+                        replies.add(error(packet.getShort(0) & 0xffff, false, null, 0, RCODE_FORMERR));
+                    }
+                }
+                // the stub is done asking, let the answers still being looked up go out
+                permits.tryAcquire(MAX_TCP_PIPELINE, TCP_IDLE_MS, TimeUnit.MILLISECONDS);
+            } catch (IOException | InterruptedException e) {
+                // closed by the stub, cut off mid message, or shutting down
+            } finally {
+                replies.add(new byte[0]);      // tells the writer to close the connection
+            }
+        }
+
+        //Write each answer as a two byte length followed by the message, until the reader is
+        //done. Once the stub has gone the answers left are thrown away.
+        private void write() {
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                byte[] reply;
+                while ((reply = replies.take()).length > 0) {
+                    try {
+                        if (out != null) {
+                            out.writeShort(reply.length);
+                            out.write(reply);
+                            byte[] next = replies.peek();
+                            if (next == null || next.length == 0) {
+                                out.flush();
+                            }
+                        }
+                    } catch (IOException e) {
+                        out = null;
+                        disconnect();       // the reader sees it and stops
+                    } finally {
+                        permits.release();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // the stub has gone, or shutting down
+            } finally {
+                disconnect();
+                connections.remove(socket);
+            }
+        }
+
+        private void disconnect() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    //Bind shardCount sockets to listen, fewer if the platform cannot share the address, and a
+    //TCP socket to the same address and port, and start serving on them
+    public ResolverDaemon(Resolver resolver, InetSocketAddress listen, int shardCount) throws IOException {
+        this.resolver = resolver;
+        InetSocketAddress address = listen;
+        ServerSocket tcp = null;
+        try {
+            for (int i = 0; i < Math.max(1, shardCount); i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                } else if (i > 0) {
+                    channel.close();
+                    break;
+                }
+                channel.bind(address);
+                // with port 0 the first bind picks the port and the others share it
+                address = new InetSocketAddress(listen.getAddress(), ((InetSocketAddress) channel.getLocalAddress()).getPort());
+                shards.add(new Shard(channel));
+            }
+            tcp = new ServerSocket();
+            tcp.setReuseAddress(true);
+            tcp.bind(address);
+        } catch (IOException e) {
+            if (tcp != null) {
+                tcp.close();
+            }
+            closeShards();
+            throw e;
+        }
+        this.tcpSocket = tcp;
+        this.port = address.getPort();
+        for (int i = 0; i < shards.size(); i++) {
+            Thread t = new Thread(shards.get(i), "dns-daemon-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread acceptor = new Thread(this::accept, "dns-daemon-tcp");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void accept() {
+        while (!tcpSocket.isClosed()) {
+            Socket s;
+            try {
+                s = tcpSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            if (connections.size() >= MAX_TCP_CONNECTIONS) {
+                try {
+                    s.close();      // the stub tries again later or elsewhere
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                continue;
+            }
+            connections.add(s);
+            Thread t = new Thread(new TcpConnection(s), "dns-daemon-tcp-reader");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public void close() {
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Socket s : connections) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        closeShards();
+    }
+
+    private void closeShards() {
+        for (Shard shard : shards) {
+            try {
+                shard.channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    //Build the response for a finished lookup: the CNAMEs followed and the answer records,
+    //or the rcode with the SOA record of the zone when the name or the data does not exist.
+    //edns is whether the query had an OPT record, and the response is cut short with the TC
+    //bit at maxSize bytes.
+    byte[] answer(int id, boolean rd, String qName, int qType, boolean edns, int maxSize, ResolutionResult result) {
+        int rcode;
+        SOARecord soa = null;
+        if (result.getStatus() == ResolutionResult.OK) {
+            rcode = 0;
+        } else if (result.getStatus() == ResolutionResult.NAME_NOT_FOUND) {
+            rcode = RCODE_NXDOMAIN;
+            soa = negativeSOA(result);
+        } else {
+            // OTHER_ERROR is also what NODATA comes back as, which is a success to a stub
+            soa = negativeSOA(result);
+            rcode = soa != null ? 0 : RCODE_SERVFAIL;
+        }
+
+        DNSMessageWriter out = new DNSMessageWriter(maxSize);
+        out.header(id, flags(rd) | rcode);
+        if (edns) {
+            out.reserveOpt();
+        }
+        out.question(qName, qType, Resolver.CLASS_IN);
+        List<ResponseRecord> answers = new ArrayList<ResponseRecord>(result.getAliases());
+        answers.addAll(result.getRecords());
+        boolean fits = true;
+        for (ResponseRecord rr : answers) {
+            if (!out.record(DNSResponse.SECTION_ANSWER, rr)) {
+                out.setFlags(DNSMessageWriter.FLAG_TC);
+                fits = false;
+                break;
+            }
+        }
+        if (fits && soa != null) {
+            out.record(DNSResponse.SECTION_AUTHORITY, soa);
+        }
+        if (edns) {
+            out.opt(MAX_EDNS_SIZE);
+        }
+        return out.toByteArray();
+    }
+
+    private SOARecord negativeSOA(ResolutionResult result) {
+        NegativeCache.Entry entry = resolver.getNegativeCache().get(result.getCanonicalName(), result.getType());
+        // the SOA goes out with the time the negative answer has left, as RFC 2308 has it
+        return entry != null && entry.getSOA() != null ? (SOARecord) entry.getSOA().withTtl(entry.getTtl()) : null;
+    }
+
+    //Whether a packet has a whole header and the QR bit clear. Anything else is dropped
+    //unanswered: a reply to a packet shorter than its reply, or to a response, would let a
+    //spoofed source use the daemon to reflect traffic at someone.
+    static boolean isQuery(ByteBuffer packet) {
+        return packet.remaining() >= 12 && (packet.get(packet.position() + 2) & 0x80) == 0;
+    }
+
+    private static byte[] error(int id, boolean rd, String qName, int qType, int rcode) {
+        DNSMessageWriter out = new DNSMessageWriter(MAX_UDP_SIZE);
+        out.header(id, flags(rd) | rcode);
+        if (qName != null) {
+            out.question(qName, qType, Resolver.CLASS_IN);
+        }
+        return out.toByteArray();
+    }
+
+    private static int flags(boolean rd) {
+        return DNSMessageWriter.FLAG_QR | DNSMessageWriter.FLAG_RA | (rd ? DNSMessageWriter.FLAG_RD : 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            usage();
+            return;
+        }
+        Resolver.Builder builder = Resolver.builder().rootServer(args[0]).jmxName("DNSlookup:type=Resolver");
+        String listenAddress = "127.0.0.1";
+        int listenPort = DNSTransport.DNS_PORT;
+        int shardCount = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-listen") && i + 1 < args.length) {
+                listenAddress = args[++i];
+            } else if (args[i].equals("-port") && i + 1 < args.length) {
+                listenPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-shards") && i + 1 < args.length) {
+                shardCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-upstream-port") && i + 1 < args.length) {
+                builder.port(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-edns") && i + 1 < args.length) {
+                builder.ednsPayloadSize(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                builder.answerCacheSize(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-offheap") && i + 1 < args.length) {
+                builder.offHeapCache(Long.parseLong(args[++i]) << 20);
+            } else if (args[i].equals("-prefetch") && i + 1 < args.length) {
+                builder.prefetch(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-stale") && i + 1 < args.length) {
+                builder.serveStale(Long.parseLong(args[++i]));
+            } else if (args[i].equals("-snapshot") && i + 1 < args.length) {
+                builder.snapshot(args[++i], 60);
+            } else if (args[i].equals("-local") && i + 1 < args.length) {
+                builder.localZone(args[++i]);
+            } else if (args[i].equals("-trace") && i + 1 < args.length) {
+                builder.traceFile(args[++i]);
+            } else if (args[i].equals("-stats") && i + 1 < args.length) {
+                builder.metricsInterval(Long.parseLong(args[++i]) * 1000);
+            } else {
+                usage();
+                return;
+            }
+        }
+        Resolver resolver = builder.build();
+        ResolverDaemon daemon = new ResolverDaemon(resolver, new InetSocketAddress(listenAddress, listenPort), shardCount);
+        // on SIGTERM or ^C: save the last snapshot, write out the rest of the trace and
+        // unregister the metrics
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            daemon.close();
+            try {
+                resolver.close();
+            } catch (IOException e) {
+                System.err.println("cannot close resolver: " + e.getMessage());
+            }
+        }, "dns-daemon-shutdown"));
+        System.out.println("resolving for " + listenAddress + ":" + daemon.getPort() + " with " + daemon.getShardCount()
+                + " shards, root " + args[0]);
+        Thread.currentThread().join();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java ResolverDaemon rootDNS [-listen address] [-port p] [-shards n] [-upstream-port p] [-edns size] [-cache size] [-offheap mb] [-prefetch n] [-stale s] [-snapshot file] [-local file] [-trace file] [-stats s]");
+        System.out.println("   where");
+        System.out.println("       rootDNS        - the IP address of the root DNS server lookups start at");
+        System.out.println("       -listen        -address to answer queries on, 127.0.0.1 by default");
+        System.out.println("       -port          -port to answer queries on, 53 by default");
+        System.out.println("       -shards        -number of sockets and threads serving queries, one per core by default");
+        System.out.println("       -upstream-port -port the name servers listen on, 53 unless testing against a MockHierarchy");
+        System.out.println("       -edns          -UDP payload size offered to upstream servers, 0 for none");
+        System.out.println("       -cache         -maximum number of record sets kept in the answer cache");
+        System.out.println("       -offheap       -keep the answer cache in this many megabytes off the heap instead");
+        System.out.println("       -prefetch      -refresh names asked for this many times just before they expire");
+        System.out.println("       -stale         -answer with records up to this many seconds expired while refreshing them");
+        System.out.println("       -snapshot      -file the caches are loaded from at start and saved to every minute");
+        System.out.println("       -local         -hosts or master file of names answered locally, reloaded when it changes");
+        System.out.println("       -trace         -file the queries made and responses received are traced to, see TraceDecoder");
+        System.out.println("       -stats         -print resolver metrics to stderr every s seconds");
+    }
+}
@@ -0,0 +1,361 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters and latency histograms for a Resolver, cheap enough to be always on: every
+// update is a LongAdder increment or a lock-free histogram record, so lookups running
+// on different threads never contend for them. They can be read over JMX once the
+// metrics are registered, or printed as a text snapshot.
+//
+// Round trip times are kept per server for at most MAX_SERVERS servers. A server that has
+// not answered for SERVER_IDLE_MS gives up its histogram when room is needed, and the
+// servers that find no room are counted together under OTHER_SERVERS, so a long running
+// resolver does not keep a histogram for every server it ever asked.
+
+public class ResolverMetrics implements ResolverMetricsMXBean {
+    static final int MAX_HOPS = 16;             // lookups needing more queries are counted here
+    static final int MAX_CHAIN = 8;             // longer CNAME chains are counted here
+    static final int MAX_SERVERS = 256;         // servers with a latency histogram of their own
+    static final long SERVER_IDLE_MS = 10 * 60 * 1000;
+    static final String OTHER_SERVERS = "other";
+
+    private static final String[] STATUS_NAMES = {
+        "OK", "NAME_NOT_FOUND", "TOO_MANY_QUERIES", "TIMED_OUT", "OTHER_ERROR"
+    };
+    private static final String[] RCODE_NAMES = {
+        "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"
+    };
+
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder negativeCacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder staleAnswers = new LongAdder();
+    private final LongAdder localAnswers = new LongAdder();
+    private final LongAdder[] lookupStatus = adders(STATUS_NAMES.length);
+    private final LongAdder[] rcodes = adders(16);
+    private final LongAdder[] chainLengths = adders(MAX_CHAIN + 1);
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram[] latencyByHops = new LatencyHistogram[MAX_HOPS + 1];
+    private final ConcurrentHashMap<String, ServerLatency> serverLatency = new ConcurrentHashMap<String, ServerLatency>();
+    private final LatencyHistogram otherServerLatency = new LatencyHistogram();
+    private volatile long nextEviction = 0;     // when full, idle servers are looked for at most once a second
+
+    private volatile LongSupplier coalesced = () -> 0;
+    private volatile LongSupplier tcpQueries = () -> 0;
+    private volatile LongSupplier tcpConnections = () -> 0;
+    private volatile LongSupplier serversHeldDown = () -> 0;
+    private volatile LongSupplier heldDownChecks = () -> 0;
+    private volatile LongSupplier heldDownHits = () -> 0;
+    private ObjectName registeredAs;
+
+    // The round trip times of one server and when it last answered
+    private static class ServerLatency {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        volatile long lastUsed = System.currentTimeMillis();
+    }
+
+    public ResolverMetrics() {
+        for (int i = 0; i < latencyByHops.length; i++) {
+            latencyByHops[i] = new LatencyHistogram();
+        }
+    }
+
+    //A query was sent; retransmission is true for every send of it after the first
+    void querySent(boolean retransmission) {
+        queriesSent.increment();
+        if (retransmission) {
+            retransmissions.increment();
+        }
+    }
+
+    //Where the number of queries coalesced with one already in flight is kept
+    void setCoalescedCounter(LongSupplier counter) {
+        coalesced = counter;
+    }
+
+    //Where the numbers of queries retried over TCP and of TCP connections opened are kept
+    void setTcpCounters(LongSupplier queries, LongSupplier connections) {
+        tcpQueries = queries;
+        tcpConnections = connections;
+    }
+
+    //Where the servers held down, and the checks of servers before sending and how many of
+    //them found the server held down, are kept
+    void setHealthCounters(LongSupplier heldDown, LongSupplier checks, LongSupplier hits) {
+        serversHeldDown = heldDown;
+        heldDownChecks = checks;
+        heldDownHits = hits;
+    }
+
+    void timeout() {
+        timeouts.increment();
+    }
+
+    void cacheHit() {
+        cacheHits.increment();
+    }
+
+    void negativeCacheHit() {
+        negativeCacheHits.increment();
+    }
+
+    void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    //A cached answer is being looked up again in the background
+    void refresh() {
+        refreshes.increment();
+    }
+
+    void staleAnswer() {
+        staleAnswers.increment();
+    }
+
+    //A name was answered from the local zone
+    void localAnswer() {
+        localAnswers.increment();
+    }
+
+    //A server answered with rcode after rttNanos
+    void response(String server, int rcode, long rttNanos) {
+        rcodes[rcode & 15].increment();
+        ServerLatency latency = serverLatency.get(server);
+        if (latency == null) {
+            if (serverLatency.size() >= MAX_SERVERS) {
+                evictIdleServers();
+            }
+            if (serverLatency.size() >= MAX_SERVERS) {
+                otherServerLatency.record(rttNanos / 1000);
+                return;
+            }
+            latency = serverLatency.computeIfAbsent(server, s -> new ServerLatency());
+        }
+        long now = System.currentTimeMillis();
+        if (latency.lastUsed != now) {
+            latency.lastUsed = now;
+        }
+        latency.histogram.record(rttNanos / 1000);
+    }
+
+    private void evictIdleServers() {
+        long now = System.currentTimeMillis();
+        if (now < nextEviction) {
+            return;
+        }
+        nextEviction = now + 1000;
+        serverLatency.values().removeIf(latency -> latency.lastUsed < now - SERVER_IDLE_MS);
+    }
+
+    //A lookup finished with status after sending hops queries and following cnames CNAMEs
+    void lookupDone(int status, int hops, int cnames, long elapsedNanos) {
+        lookupStatus[Math.min(-status, STATUS_NAMES.length - 1)].increment();
+        chainLengths[Math.min(cnames, MAX_CHAIN)].increment();
+        lookupLatency.record(elapsedNanos / 1000);
+        latencyByHops[Math.min(hops, MAX_HOPS)].record(elapsedNanos / 1000);
+    }
+
+    //Make the metrics visible over JMX under the given name, e.g. "DNSlookup:type=Resolver"
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        server.registerMBean(this, objectName);
+        registeredAs = objectName;
+    }
+
+    public synchronized void unregister() {
+        if (registeredAs == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+        } catch (JMException e) {
+            // already gone
+        }
+        registeredAs = null;
+    }
+
+    public long getLookups() {
+        long total = 0;
+        for (LongAdder a : lookupStatus) {
+            total += a.sum();
+        }
+        return total;
+    }
+
+    public Map<String, Long> getLookupStatus() {
+        return counts(STATUS_NAMES, lookupStatus);
+    }
+
+    public long getQueriesSent() {
+        return queriesSent.sum();
+    }
+
+    public long getQueriesCoalesced() {
+        return coalesced.getAsLong();
+    }
+
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    public long getTcpQueries() {
+        return tcpQueries.getAsLong();
+    }
+
+    public long getTcpConnections() {
+        return tcpConnections.getAsLong();
+    }
+
+    public long getServersHeldDown() {
+        return serversHeldDown.getAsLong();
+    }
+
+    public long getHeldDownChecks() {
+        return heldDownChecks.getAsLong();
+    }
+
+    public long getHeldDownHits() {
+        return heldDownHits.getAsLong();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getNegativeCacheHits() {
+        return negativeCacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    public long getStaleAnswers() {
+        return staleAnswers.sum();
+    }
+
+    public long getLocalAnswers() {
+        return localAnswers.sum();
+    }
+
+    public Map<String, Long> getResponseCodes() {
+        Map<String, Long> found = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < rcodes.length; i++) {
+            long n = rcodes[i].sum();
+            if (n > 0) {
+                found.put(i < RCODE_NAMES.length ? RCODE_NAMES[i] : "RCODE" + i, n);
+            }
+        }
+        return found;
+    }
+
+    public double getLookupLatencyP50() {
+        return lookupLatency.getPercentileMicros(0.5) / 1e3;
+    }
+
+    public double getLookupLatencyP99() {
+        return lookupLatency.getPercentileMicros(0.99) / 1e3;
+    }
+
+    public Map<String, String> getLookupLatencyByHops() {
+        Map<String, String> found = new LinkedHashMap<String, String>();
+        for (int i = 0; i < latencyByHops.length; i++) {
+            if (latencyByHops[i].getCount() > 0) {
+                found.put(i == MAX_HOPS ? MAX_HOPS + "+" : Integer.toString(i), latencyByHops[i].summary());
+            }
+        }
+        return found;
+    }
+
+    public Map<String, String> getServerLatency() {
+        Map<String, String> found = new TreeMap<String, String>();
+        for (Map.Entry<String, ServerLatency> e : serverLatency.entrySet()) {
+            found.put(e.getKey(), e.getValue().histogram.summary());
+        }
+        if (otherServerLatency.getCount() > 0) {
+            found.put(OTHER_SERVERS, otherServerLatency.summary());
+        }
+        return found;
+    }
+
+    public Map<String, Long> getCnameChainLengths() {
+        Map<String, Long> found = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < chainLengths.length; i++) {
+            long n = chainLengths[i].sum();
+            if (n > 0) {
+                found.put(i == MAX_CHAIN ? MAX_CHAIN + "+" : Integer.toString(i), n);
+            }
+        }
+        return found;
+    }
+
+    public String getSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("lookups ").append(getLookups()).append(' ').append(getLookupStatus()).append('\n');
+        sb.append("lookup latency ").append(lookupLatency.summary()).append('\n');
+        for (Map.Entry<String, String> e : getLookupLatencyByHops().entrySet()) {
+            sb.append("  hops ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        sb.append("queries sent ").append(getQueriesSent())
+                .append(" coalesced ").append(getQueriesCoalesced())
+                .append(" retransmissions ").append(getRetransmissions())
+                .append(" timeouts ").append(getTimeouts())
+                .append(" tcp ").append(getTcpQueries())
+                .append(" on ").append(getTcpConnections()).append(" connections").append('\n');
+        sb.append("servers held down ").append(getServersHeldDown())
+                .append(" checks ").append(getHeldDownChecks())
+                .append(" hits ").append(getHeldDownHits()).append('\n');
+        sb.append("cache hits ").append(getCacheHits())
+                .append(" negative hits ").append(getNegativeCacheHits())
+                .append(" misses ").append(getCacheMisses())
+                .append(" refreshes ").append(getRefreshes())
+                .append(" stale answers ").append(getStaleAnswers())
+                .append(" local answers ").append(getLocalAnswers()).append('\n');
+        sb.append("rcodes ").append(getResponseCodes()).append('\n');
+        sb.append("cname chains ").append(getCnameChainLengths()).append('\n');
+        for (Map.Entry<String, String> e : getServerLatency().entrySet()) {
+            sb.append("  server ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void print(PrintStream out) {
+        out.print(getSnapshot());
+        out.flush();
+    }
+
+    private static Map<String, Long> counts(String[] names, LongAdder[] adders) {
+        Map<String, Long> found = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < names.length; i++) {
+            found.put(names[i], adders[i].sum());
+        }
+        return found;
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+}
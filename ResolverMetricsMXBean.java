@@ -0,0 +1,71 @@
+import java.util.Map;
+
+// The management interface of ResolverMetrics, as seen through JMX (jconsole, jcmd and so
+// on). Latencies are in milliseconds.
+
+public interface ResolverMetricsMXBean {
+    long getLookups();
+
+    //Finished lookups by outcome: OK, NAME_NOT_FOUND, TOO_MANY_QUERIES, TIMED_OUT, OTHER_ERROR
+    Map<String, Long> getLookupStatus();
+
+    //Queries handed to the transport, including those it coalesced
+    long getQueriesSent();
+
+    //Queries that waited for an identical one already in flight instead of being sent
+    long getQueriesCoalesced();
+
+    //Sends of a query after the first, to the same server or the next one
+    long getRetransmissions();
+
+    //Truncated responses asked for again over TCP
+    long getTcpQueries();
+
+    //TCP connections opened for them, fewer than the queries while connections are reused
+    long getTcpConnections();
+
+    //Servers held down for a zone after timing out, failing or answering lamely
+    long getServersHeldDown();
+
+    //Servers checked for a hold-down before a query, and checks that found one
+    long getHeldDownChecks();
+
+    long getHeldDownHits();
+
+    long getTimeouts();
+
+    long getCacheHits();
+
+    long getNegativeCacheHits();
+
+    long getCacheMisses();
+
+    //Background lookups of cached answers, for prefetching or to replace a stale answer
+    long getRefreshes();
+
+    //Lookups answered with expired records
+    long getStaleAnswers();
+
+    //Lookups, and links of CNAME chains, answered from the local zone
+    long getLocalAnswers();
+
+    //Responses by rcode: NOERROR, NXDOMAIN, SERVFAIL, ...
+    Map<String, Long> getResponseCodes();
+
+    double getLookupLatencyP50();
+
+    double getLookupLatencyP99();
+
+    //Lookup latency percentiles keyed by the number of queries the lookup needed
+    Map<String, String> getLookupLatencyByHops();
+
+    //Round trip time percentiles keyed by server address, the servers without a histogram of
+    //their own together under "other"
+    Map<String, String> getServerLatency();
+
+    //Lookups by the number of CNAMEs followed
+    Map<String, Long> getCnameChainLengths();
+
+    //Everything above as text, the same as the periodic report
+    String getSnapshot();
+}
@@ -1,16 +1,20 @@
-
-
 public class ResponseRecord {
     private String name;        //name is two byte. if first 2 bits are 11, then rest is a pointer to the actual name, offset from request id.
     private String type;
+    private int rClass;         //record class, 1 for IN
     private int ttl;
     private int dataLength;
     private String data;
     public Boolean isAnswer = false;
 
     public ResponseRecord(String name, String type, int ttl, int dataLength, String data) {
+        this(name, type, 1, ttl, dataLength, data);
+    }
+
+    public ResponseRecord(String name, String type, int rClass, int ttl, int dataLength, String data) {
         this.name = name;
         this.type = type;
+        this.rClass = rClass;
         this.ttl = ttl;
         this.dataLength = dataLength;
         this.data = data;
@@ -24,6 +28,10 @@ public class ResponseRecord {
         return this.type;
     }
 
+    public int getRClass() {
+        return this.rClass;
+    }
+
     public int getTtl() {
         return this.ttl;
     }
@@ -43,4 +51,25 @@ public class ResponseRecord {
     public boolean isAnswer() {
         return this.isAnswer;
     }
-}
\ No newline at end of file
+
+    //Copy of this record with a different ttl, used when handing out cached records
+    public ResponseRecord withTtl(int ttl) {
+        return new ResponseRecord(name, type, rClass, ttl, dataLength, data);
+    }
+
+    //Names are compared case insensitively and without the trailing dot
+    public static String normalizeName(String name) {
+        String n = name.trim().toLowerCase();
+        if (n.endsWith(".")) {
+            n = n.substring(0, n.length() - 1);
+        }
+        return n;
+    }
+
+    //Whether name is zone or a name below it. The root zone is "".
+    public static boolean isInZone(String name, String zone) {
+        String n = normalizeName(name);
+        String z = normalizeName(zone);
+        return z.length() == 0 || n.equals(z) || (n.endsWith(z) && n.charAt(n.length() - z.length() - 1) == '.');
+    }
+}
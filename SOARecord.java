@@ -0,0 +1,64 @@
+// An SOA response record with its RDATA decoded. The minimum field together with the
+// record's own ttl bounds how long a negative answer from the zone may be cached.
+
+public class SOARecord extends ResponseRecord {
+    private String mName;       // primary name server of the zone
+    private String rName;       // mailbox of the person responsible for the zone
+    private long serial;
+    private long refresh;
+    private long retry;
+    private long expire;
+    private long minimum;
+
+    public SOARecord(String name, int rClass, int ttl, int dataLength, String mName, String rName,
+                     long serial, long refresh, long retry, long expire, long minimum) {
+        super(name, "SOA", rClass, ttl, dataLength,
+                mName + " " + rName + " " + serial + " " + refresh + " " + retry + " " + expire + " " + minimum);
+        this.mName = mName;
+        this.rName = rName;
+        this.serial = serial;
+        this.refresh = refresh;
+        this.retry = retry;
+        this.expire = expire;
+        this.minimum = minimum;
+    }
+
+    public String getMName() {
+        return this.mName;
+    }
+
+    public String getRName() {
+        return this.rName;
+    }
+
+    public long getSerial() {
+        return this.serial;
+    }
+
+    public long getRefresh() {
+        return this.refresh;
+    }
+
+    public long getRetry() {
+        return this.retry;
+    }
+
+    public long getExpire() {
+        return this.expire;
+    }
+
+    public long getMinimum() {
+        return this.minimum;
+    }
+
+    //How long a negative answer carrying this record may be cached (RFC 2308 section 5)
+    public int getNegativeTtl() {
+        return (int) Math.min(getTtl(), minimum);
+    }
+
+    @Override
+    public ResponseRecord withTtl(int ttl) {
+        return new SOARecord(getName(), getRClass(), ttl, getDataLength(), mName, rName,
+                serial, refresh, retry, expire, minimum);
+    }
+}
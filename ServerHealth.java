@@ -0,0 +1,119 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remembers which name servers have been failing for which zones, so lookups stop waiting
+// on them. A server fails for a zone when a query to it times out, when it answers with
+// SERVFAIL or REFUSED, or when it is lame: it answers without authority and without
+// referring us further down, so it is not really serving the zone it was delegated. Each
+// failure holds the server down for the zone, for MIN_HOLD_DOWN_MS after the first and
+// twice as long after every failure since, up to MAX_HOLD_DOWN_MS. Held down servers are
+// tried after all the others, and any good answer from the server clears its record.
+// The record is per (server, zone) because a server that is lame for one zone may serve
+// others perfectly well.
+
+public class ServerHealth {
+    public static final long MIN_HOLD_DOWN_MS = 5 * 1000;
+    public static final long MAX_HOLD_DOWN_MS = 15 * 60 * 1000;
+    static final int MAX_ENTRIES = 10000;
+
+    private final ConcurrentHashMap<String, Health> servers = new ConcurrentHashMap<String, Health>();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    private static class Health {
+        int failures;
+        long heldUntil;         // System.currentTimeMillis() the hold-down ends
+    }
+
+    //Record that server failed for zone, and hold it down. Returns the hold-down in ms, 0 if
+    //there was no room to record it.
+    public long failed(String server, String zone) {
+        String key = key(server, zone);
+        if (servers.size() >= MAX_ENTRIES && !servers.containsKey(key)) {
+            sweep();
+            if (servers.size() >= MAX_ENTRIES) {
+                return 0;       // too many failing servers to keep track of another
+            }
+        }
+        Health h = servers.computeIfAbsent(key, k -> new Health());
+        synchronized (h) {
+            long now = System.currentTimeMillis();
+            if (h.heldUntil < now - MAX_HOLD_DOWN_MS) {
+                h.failures = 0;     // it has been fine for a long time
+            }
+            long holdDown = MIN_HOLD_DOWN_MS << Math.min(h.failures, 20);
+            holdDown = Math.min(MAX_HOLD_DOWN_MS, holdDown);
+            h.failures++;
+            h.heldUntil = now + holdDown;
+            return holdDown;
+        }
+    }
+
+    //Record that server gave a good answer for zone
+    public void succeeded(String server, String zone) {
+        if (!servers.isEmpty()) {
+            servers.remove(key(server, zone));
+        }
+    }
+
+    //How many ms server is still held down for zone, 0 if it is not
+    public long heldDownFor(String server, String zone) {
+        checks.increment();
+        Health h = servers.get(key(server, zone));
+        if (h == null) {
+            return 0;
+        }
+        long left;
+        synchronized (h) {
+            left = h.heldUntil - System.currentTimeMillis();
+        }
+        if (left <= 0) {
+            return 0;
+        }
+        hits.increment();
+        return left;
+    }
+
+    //Times a server was checked before a query was sent to it
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    //Checks that found the server held down
+    public long getHits() {
+        return hits.sum();
+    }
+
+    //Servers held down now, each counted once per zone
+    public int getHeldDown() {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        for (Health h : servers.values()) {
+            synchronized (h) {
+                if (h.heldUntil > now) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    //Forget servers whose hold-down ended long enough ago that a failure now would start
+    //the backoff over anyway
+    private void sweep() {
+        long forgetBefore = System.currentTimeMillis() - MAX_HOLD_DOWN_MS;
+        for (Iterator<Health> it = servers.values().iterator(); it.hasNext(); ) {
+            Health h = it.next();
+            synchronized (h) {
+                if (h.heldUntil < forgetBefore) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String key(String server, String zone) {
+        return server + " " + zone;
+    }
+}
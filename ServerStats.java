@@ -0,0 +1,122 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps a smoothed round trip time for every name server address we have sent queries to,
+// computed the way TCP does it (RFC 6298): SRTT and RTTVAR are updated from every
+// response and the retransmission timeout is SRTT + 4 * RTTVAR. A timeout doubles the
+// server's timeout and makes it look slower, so that servers answering quickly are
+// preferred when a zone has several. Servers we have never heard from get a small random
+// SRTT so that each of them is tried early on.
+//
+// At most MAX_SERVERS servers are kept. When that many are, servers not asked about for
+// SERVER_IDLE_MS are forgotten, looked for at most once a second, since their times are
+// out of date by then anyway. A server that still finds no room is treated as one we have
+// never heard from, so a long running resolver does not keep every server it ever asked.
+
+public class ServerStats {
+    public static final long INITIAL_RTO_MS = 800;
+    public static final long MIN_RTO_MS = 50;
+    public static final long MAX_RTO_MS = 5000;
+    static final int MAX_SERVERS = 10000;
+    static final long SERVER_IDLE_MS = 15 * 60 * 1000;
+
+    private final ConcurrentHashMap<String, Rtt> servers = new ConcurrentHashMap<String, Rtt>();
+    private final Random rnd = new Random();
+    private volatile long nextEviction = 0;     // when full, idle servers are looked for at most once a second
+
+    private static class Rtt {
+        double srtt;            // smoothed round trip time in ms
+        double rttvar;          // round trip time variation in ms
+        long rto;               // retransmission timeout in ms
+        boolean measured;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Rtt(double srtt) {
+            this.srtt = srtt;
+            this.rttvar = 0;
+            this.rto = INITIAL_RTO_MS;
+        }
+    }
+
+    //Record the round trip time of a query that was answered
+    public void update(String server, long rttMs) {
+        Rtt rtt = get(server);
+        synchronized (rtt) {
+            if (!rtt.measured) {
+                rtt.srtt = rttMs;
+                rtt.rttvar = rttMs / 2.0;
+                rtt.measured = true;
+            } else {
+                rtt.rttvar = 0.75 * rtt.rttvar + 0.25 * Math.abs(rtt.srtt - rttMs);
+                rtt.srtt = 0.875 * rtt.srtt + 0.125 * rttMs;
+            }
+            rtt.rto = clamp((long) (rtt.srtt + Math.max(1, 4 * rtt.rttvar)));
+        }
+    }
+
+    //Record that a query to server timed out
+    public void timeout(String server) {
+        Rtt rtt = get(server);
+        synchronized (rtt) {
+            rtt.rto = clamp(rtt.rto * 2);
+            rtt.srtt = Math.max(rtt.srtt, rtt.rto);
+        }
+    }
+
+    //How long to wait for server to answer before retransmitting
+    public long getTimeout(String server) {
+        Rtt rtt = get(server);
+        synchronized (rtt) {
+            return rtt.rto;
+        }
+    }
+
+    public double getSrtt(String server) {
+        Rtt rtt = get(server);
+        synchronized (rtt) {
+            return rtt.srtt;
+        }
+    }
+
+    //Sort a list of server addresses so the one expected to answer fastest comes first
+    public List<String> order(List<String> addresses) {
+        List<String> ordered = new ArrayList<String>(addresses);
+        final Map<String, Double> srtt = new HashMap<String, Double>();
+        for (String address : ordered) {
+            srtt.put(address, getSrtt(address));
+        }
+        ordered.sort((a, b) -> Double.compare(srtt.get(a), srtt.get(b)));
+        return ordered;
+    }
+
+    private Rtt get(String server) {
+        Rtt rtt = servers.get(server);
+        if (rtt == null) {
+            if (servers.size() >= MAX_SERVERS) {
+                evictIdleServers();
+            }
+            if (servers.size() >= MAX_SERVERS) {
+                return new Rtt(rnd.nextInt(10));       // not kept, as if never heard from
+            }
+            rtt = servers.computeIfAbsent(server, s -> new Rtt(rnd.nextInt(10)));
+        }
+        long now = System.currentTimeMillis();
+        if (rtt.lastUsed != now) {
+            rtt.lastUsed = now;
+        }
+        return rtt;
+    }
+
+    private void evictIdleServers() {
+        long now = System.currentTimeMillis();
+        if (now < nextEviction) {
+            return;
+        }
+        nextEviction = now + 1000;
+        servers.values().removeIf(rtt -> rtt.lastUsed < now - SERVER_IDLE_MS);
+    }
+
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+    }
+}
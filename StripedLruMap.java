@@ -0,0 +1,121 @@
+import java.util.*;
+import java.util.function.BiConsumer;
+
+// A map with a bounded number of entries, split into stripes that each have their own
+// lock and their own share of the capacity. A key always lands in the same stripe, so
+// threads working on different keys rarely wait for each other, and when a stripe is full
+// its least recently used entry is evicted. The caches keep their entries in one of these.
+
+public class StripedLruMap<V> {
+    private final Stripe<V>[] stripes;
+
+    // One share of the map. Access ordered, so the eldest entry is always the least
+    // recently used one.
+    private static class Stripe<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+
+        final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    //A map of at most maxEntries split into stripeCount stripes, rounded down to a power of two
+    public StripedLruMap(int maxEntries, int stripeCount) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("cache size must be at least 1");
+        }
+        int n = Integer.highestOneBit(Math.max(1, Math.min(stripeCount, maxEntries)));
+        @SuppressWarnings("unchecked")
+        Stripe<V>[] stripes = (Stripe<V>[]) new Stripe<?>[n];
+        this.stripes = stripes;
+        for (int i = 0; i < n; i++) {
+            // spread the capacity so the stripes add up to maxEntries
+            stripes[i] = new Stripe<V>(maxEntries / n + (i < maxEntries % n ? 1 : 0));
+        }
+    }
+
+    //A map with as many stripes as suit maxEntries on this machine
+    public StripedLruMap(int maxEntries) {
+        this(maxEntries, stripesFor(maxEntries));
+    }
+
+    public V get(String key) {
+        Stripe<V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    public void put(String key, V value) {
+        Stripe<V> stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    //Remove key only if it still maps to value, so a fresh entry put in the meantime survives
+    public boolean remove(String key, V value) {
+        Stripe<V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.remove(key, value);
+        }
+    }
+
+    //Replace the value of key only if it still maps to oldValue. Returns whether it did.
+    public boolean replace(String key, V oldValue, V newValue) {
+        Stripe<V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.replace(key, oldValue, newValue);
+        }
+    }
+
+    //Call action for every entry. Each stripe is copied under its lock and the action run
+    //after, so a slow action holds no one up, and the LRU order is left as it was.
+    public void forEach(BiConsumer<String, V> action) {
+        for (Stripe<V> stripe : stripes) {
+            List<Map.Entry<String, V>> copy;
+            synchronized (stripe) {
+                copy = new ArrayList<Map.Entry<String, V>>(stripe.size());
+                for (Map.Entry<String, V> e : stripe.entrySet()) {
+                    copy.add(new AbstractMap.SimpleImmutableEntry<String, V>(e));
+                }
+            }
+            for (Map.Entry<String, V> e : copy) {
+                action.accept(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    public int size() {
+        int total = 0;
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.size();
+            }
+        }
+        return total;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    private Stripe<V> stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    //Enough stripes that the cores rarely meet on one, while each stays big enough for LRU
+    //eviction to mean something
+    static int stripesFor(int maxEntries) {
+        int wanted = 4 * Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(wanted, maxEntries / 64));
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Prints a trace file written by a Tracer the way a resolver traces to the console: every
+// response with the query it answers, timeouts, failed and lame servers, servers skipped
+// while held down, and local zone reloads. With -v the queries sent and the cache
+// decisions are printed as well, and every event starts with its time.
+//
+//   java TraceDecoder file [-v]
+
+public class TraceDecoder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("-v"))) {
+            usage();
+            return;
+        }
+        boolean verbose = args.length == 2;
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 1 << 16))) {
+            if (in.readInt() != Tracer.MAGIC || in.readInt() != Tracer.VERSION) {
+                throw new IOException(args[0] + " is not a trace file");
+            }
+            byte[] event = new byte[1024];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length > event.length) {
+                    event = new byte[Integer.highestOneBit(length) << 1];
+                }
+                try {
+                    in.readFully(event, 0, length);
+                } catch (EOFException e) {
+                    // the resolver was stopped in the middle of writing it
+                    break;
+                }
+                print(ByteBuffer.wrap(event, 0, length), out, verbose);
+            }
+        } catch (EOFException e) {
+            throw new IOException(args[0] + " is not a trace file");
+        } finally {
+            out.flush();
+        }
+    }
+
+    //Print one event. Queries sent and cache decisions are only printed verbose.
+    public static void print(ByteBuffer event, PrintStream out, boolean verbose) {
+        try {
+            byte kind = event.get();
+            long time = event.getLong();
+            String prefix = verbose ? new SimpleDateFormat("HH:mm:ss.SSS ").format(new Date(time)) : "";
+            switch (kind) {
+            case Tracer.SENT:
+                if (verbose) {
+                    String name = getString(event);
+                    String type = DNSResponse.getType(event.getShort() & 0xffff);
+                    String server = getString(event);
+                    int send = event.get();
+                    out.println(prefix + (send == 0 ? "Query        " : "Retry        ") + name + " " + type
+                            + " --> " + server);
+                }
+                break;
+            case Tracer.RESPONSE: {
+                String name = getString(event);
+                String server = getString(event);
+                long rtt = event.getLong();
+                int length = event.getInt();
+                ByteBuffer packet = event.slice();
+                packet.limit(length);
+                DNSResponse res = new DNSResponse();
+                res.parse(packet);
+                out.println("\n");
+                out.println(prefix + "Query ID     " + res.getQueryID() + " " + name + " --> " + server
+                        + (verbose ? String.format(" in %.3f ms", rtt / 1e6) : ""));
+                res.printDNSResponse(out);
+                break;
+            }
+            case Tracer.TIMEOUT:
+            case Tracer.LAME:
+            case Tracer.FAILED: {
+                String what = kind == Tracer.TIMEOUT ? "Timeout      " : kind == Tracer.LAME ? "Lame         " : "Failed       ";
+                String name = getString(event);
+                String server = getString(event);
+                String zone = getString(event);
+                long holdDown = event.getLong();
+                out.println(prefix + what + name + " --> " + server + ", held down for " + zoneName(zone)
+                        + " " + holdDown + " ms");
+                break;
+            }
+            case Tracer.HELD_DOWN: {
+                String server = getString(event);
+                String zone = getString(event);
+                long left = event.getLong();
+                long checks = event.getLong();
+                long hits = event.getLong();
+                out.println(prefix + "Held down    " + server + " for " + zoneName(zone) + ", " + left
+                        + " ms left (hit rate " + String.format("%.1f%%", checks == 0 ? 0.0 : 100.0 * hits / checks) + ")");
+                break;
+            }
+            case Tracer.CACHE:
+                if (verbose) {
+                    String name = getString(event);
+                    String type = getString(event);
+                    out.println(prefix + "Cache        " + name + " " + type + " " + decision(event.get()));
+                }
+                break;
+            case Tracer.RELOAD:
+                out.println(prefix + "Reloaded     local zone, " + event.getInt() + " record sets");
+                break;
+            case Tracer.DROPPED:
+                out.println(prefix + "Dropped      " + event.getLong() + " trace events");
+                break;
+            default:
+                out.println(prefix + "Unknown      event " + kind);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            out.println("Damaged      event");
+        }
+    }
+
+    private static String decision(byte decision) {
+        switch (decision) {
+        case Tracer.LOCAL:
+            return "local";
+        case Tracer.NEGATIVE:
+            return "negative";
+        case Tracer.HIT:
+            return "hit";
+        case Tracer.ALIAS:
+            return "alias";
+        case Tracer.MISS:
+            return "miss";
+        case Tracer.STALE:
+            return "stale";
+        default:
+            return "decision " + decision;
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xffff;
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static String zoneName(String zone) {
+        return zone.length() == 0 ? "." : zone;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java TraceDecoder file [-v]");
+        System.out.println("   where");
+        System.out.println("       file    - trace written by DNSlookup or ResolverDaemon with -trace");
+        System.out.println("       -v      -also print the queries sent and the cache decisions, with times");
+    }
+}
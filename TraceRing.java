@@ -0,0 +1,195 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// A ring buffer of binary events that any number of threads append to without locks or
+// waiting, drained in order by one background thread into a Sink. A writer claims room by
+// moving the tail on with a CAS, copies its event in, and publishes it by writing the
+// event's length in front of it last. The drainer hands each published event to the sink,
+// zeroes its room and moves the head on. An event that would run past the end of the
+// array is put at the start instead, behind a padding record that fills the rest. When
+// the ring is full events are dropped and counted rather than making a writer wait, so
+// tracing never holds a lookup up. Closing sets a bit in the tail, so no event can be
+// claimed once it is closed, and the drainer waits for the events claimed before that to
+// be published before its last pass.
+//
+// Every record starts at a multiple of 8: an int header, then the event. The header is
+// the event's length once it is published, 0 before, and minus the padding length for
+// padding.
+
+public class TraceRing implements Closeable {
+    public static final int DEFAULT_CAPACITY = 4 << 20;
+    private static final long IDLE_PARK_NANOS = 1000000;
+    private static final long CLOSE_WAIT_NANOS = 1000000000;
+    private static final long CLOSED = 1L << 62;           // set in the tail by close
+
+    private static final VarHandle HEADER = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // Where the drained events go. Called on the drainer thread only.
+    public interface Sink {
+        void accept(byte[] buffer, int offset, int length) throws IOException;
+
+        //Some events were dropped since the last call, the ring being full
+        void dropped(long count) throws IOException;
+
+        void flush() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final byte[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private final LongAdder dropped = new LongAdder();
+    private final Sink sink;
+    private final Thread drainer;
+    private volatile boolean closed = false;
+
+    //A ring of capacity bytes, rounded up to a power of two, drained into sink
+    public TraceRing(int capacity, Sink sink) {
+        int size = Integer.highestOneBit(Math.max(64, capacity - 1)) << 1;
+        this.ring = new byte[size];
+        this.mask = size - 1;
+        this.sink = sink;
+        drainer = new Thread(this::run, "dns-trace");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    //Append an event, the first length bytes of event. Returns false if it was dropped.
+    public boolean append(byte[] event, int length) {
+        int size = align(4 + length);
+        if (closed || size > ring.length / 2) {
+            dropped.increment();
+            return false;
+        }
+        while (true) {
+            long t = tail.get();
+            if ((t & CLOSED) != 0) {
+                dropped.increment();
+                return false;
+            }
+            int pos = (int) (t & mask);
+            int pad = pos + size > ring.length ? ring.length - pos : 0;
+            if (t + pad + size - head > ring.length) {
+                dropped.increment();
+                return false;
+            }
+            if (tail.compareAndSet(t, t + pad + size)) {
+                if (pad > 0) {
+                    HEADER.setRelease(ring, pos, -pad);
+                    pos = 0;
+                }
+                System.arraycopy(event, 0, ring, pos + 4, length);
+                HEADER.setRelease(ring, pos, length);
+                return true;
+            }
+        }
+    }
+
+    //Events dropped so far
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    //Wait until every event appended before this call has reached the sink, and flush it
+    public void flush() {
+        long target = tail.get() & ~CLOSED;
+        while (head < target && drainer.isAlive()) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+        }
+    }
+
+    //Drain what is left into the sink and close it
+    public void close() {
+        long t = tail.get();
+        while ((t & CLOSED) == 0 && !tail.compareAndSet(t, t | CLOSED)) {
+            t = tail.get();
+        }
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long reportedDrops = 0;
+        long giveUpAt = 0;
+        try {
+            while (true) {
+                boolean last = closed;
+                int drained = drain();
+                if (last && head < (tail.get() & ~CLOSED)) {
+                    // events claimed before the close that are still being written
+                    if (giveUpAt == 0) {
+                        giveUpAt = System.nanoTime() + CLOSE_WAIT_NANOS;
+                    }
+                    if (System.nanoTime() - giveUpAt < 0) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+                        continue;
+                    }
+                    dropped.increment();    // a writer that never finished, its event is lost
+                }
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    sink.dropped(drops - reportedDrops);
+                    reportedDrops = drops;
+                }
+                if (last) {
+                    break;
+                }
+                if (drained == 0) {
+                    sink.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("trace stopped: " + e.getMessage());
+            closed = true;
+        } finally {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    //Hand every published event to the sink, in order. Returns how many there were.
+    private int drain() throws IOException {
+        long h = head;
+        int n = 0;
+        while (h < (tail.get() & ~CLOSED)) {
+            int pos = (int) (h & mask);
+            int header = (int) HEADER.getAcquire(ring, pos);
+            if (header == 0) {
+                break;      // claimed but not written yet
+            }
+            int size = header < 0 ? -header : align(4 + header);
+            if (header > 0) {
+                sink.accept(ring, pos + 4, header);
+                n++;
+            }
+            // zeroed before the room is given back, so a header is never read from a
+            // stale event
+            Arrays.fill(ring, pos, pos + size, (byte) 0);
+            h += size;
+            head = h;
+        }
+        return n;
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+}
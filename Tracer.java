@@ -0,0 +1,214 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Records what a Resolver does as compact binary events: queries sent, responses received
+// with their packets, cache decisions, timeouts and servers held down. The lookups only
+// encode an event into a buffer of their thread and append it to a TraceRing; the ring's
+// thread writes the events to a trace file, or decodes them and prints them as text, so a
+// traced resolver never waits on the console or the disk. TraceDecoder prints a trace
+// file the way the text trace looks.
+//
+// A trace file is an int magic and an int version followed by the events, each an int
+// length and that many bytes. An event is a byte kind and a long System.currentTimeMillis(),
+// followed by the fields of its kind, all integers big endian:
+//
+//   SENT       name, short qtype, server, byte send (0 for the first, more for retries)
+//   RESPONSE   name, server, long round trip ns, int length, the packet
+//   TIMEOUT    name, server, zone, long hold-down ms       (LAME and FAILED the same)
+//   HELD_DOWN  server, zone, long ms left, long checks, long hits
+//   CACHE      name, type, byte decision
+//   RELOAD     int record sets
+//   DROPPED    long events lost because the ring was full
+//
+// where a string is a short length followed by that many bytes of UTF-8.
+
+public class Tracer implements Closeable {
+    static final int MAGIC = 0x444e5354;       // "DNST"
+    static final int VERSION = 1;
+
+    static final byte SENT = 1;
+    static final byte RESPONSE = 2;
+    static final byte TIMEOUT = 3;
+    static final byte LAME = 4;
+    static final byte FAILED = 5;
+    static final byte HELD_DOWN = 6;
+    static final byte CACHE = 7;
+    static final byte RELOAD = 8;
+    static final byte DROPPED = 9;
+
+    // cache decisions
+    static final byte LOCAL = 1;        // answered from the local zone
+    static final byte NEGATIVE = 2;     // in the negative cache
+    static final byte HIT = 3;          // in the answer cache
+    static final byte ALIAS = 4;        // a CNAME in the answer cache, followed
+    static final byte MISS = 5;         // not cached, a query goes out
+    static final byte STALE = 6;        // answered with expired records
+
+    private final TraceRing ring;
+    private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+
+    private Tracer(TraceRing.Sink sink) {
+        ring = new TraceRing(TraceRing.DEFAULT_CAPACITY, sink);
+    }
+
+    //A tracer writing its events to file, replacing what was there
+    public static Tracer toFile(Path file) throws IOException {
+        return new Tracer(new FileSink(file));
+    }
+
+    //A tracer printing its events as text, the way TraceDecoder prints a file of them
+    public static Tracer toText(PrintStream out) {
+        return new Tracer(new TextSink(out));
+    }
+
+    public void sent(String name, int qtype, String server, int send) {
+        ByteBuffer b = begin(SENT, 16 + 3 * (name.length() + server.length()));
+        putString(b, name);
+        b.putShort((short) qtype);
+        putString(b, server);
+        b.put((byte) Math.min(send, 127));
+        append(b);
+    }
+
+    public void response(String name, String server, long rttNanos, DNSResponse res) {
+        int length = res.getPacketLength();
+        ByteBuffer b = begin(RESPONSE, 24 + 3 * (name.length() + server.length()) + length);
+        putString(b, name);
+        putString(b, server);
+        b.putLong(rttNanos);
+        b.putInt(length);
+        res.getPacket(b);
+        append(b);
+    }
+
+    //A server failed for zone and was held down for holdDownMs: kind is TIMEOUT, LAME or FAILED
+    public void failed(byte kind, String name, String server, String zone, long holdDownMs) {
+        ByteBuffer b = begin(kind, 16 + 3 * (name.length() + server.length() + zone.length()));
+        putString(b, name);
+        putString(b, server);
+        putString(b, zone);
+        b.putLong(holdDownMs);
+        append(b);
+    }
+
+    public void heldDown(String server, String zone, long leftMs, long checks, long hits) {
+        ByteBuffer b = begin(HELD_DOWN, 40 + 3 * (server.length() + zone.length()));
+        putString(b, server);
+        putString(b, zone);
+        b.putLong(leftMs);
+        b.putLong(checks);
+        b.putLong(hits);
+        append(b);
+    }
+
+    public void cache(String name, String type, byte decision) {
+        ByteBuffer b = begin(CACHE, 8 + 3 * (name.length() + type.length()));
+        putString(b, name);
+        putString(b, type);
+        b.put(decision);
+        append(b);
+    }
+
+    public void reloaded(int recordSets) {
+        ByteBuffer b = begin(RELOAD, 4);
+        b.putInt(recordSets);
+        append(b);
+    }
+
+    //Events lost because the ring was full
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    //Wait until every event recorded so far has been written
+    public void flush() {
+        ring.flush();
+    }
+
+    public void close() {
+        ring.close();
+    }
+
+    //The scratch buffer of this thread, cleared and big enough for the kind, the time and
+    //size more bytes, with the kind and the time in it
+    private ByteBuffer begin(byte kind, int size) {
+        ByteBuffer b = scratch.get();
+        if (b.capacity() < 9 + size) {
+            b = ByteBuffer.allocate(Integer.highestOneBit(9 + size) << 1);
+            scratch.set(b);
+        }
+        b.clear();
+        b.put(kind);
+        b.putLong(System.currentTimeMillis());
+        return b;
+    }
+
+    private void append(ByteBuffer b) {
+        ring.append(b.array(), b.position());
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.putShort((short) bytes.length);
+        b.put(bytes);
+    }
+
+    // Writes the events to a trace file
+    private static class FileSink implements TraceRing.Sink {
+        final DataOutputStream out;
+
+        FileSink(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public void accept(byte[] buffer, int offset, int length) throws IOException {
+            out.writeInt(length);
+            out.write(buffer, offset, length);
+        }
+
+        public void dropped(long count) throws IOException {
+            out.writeInt(17);
+            out.writeByte(DROPPED);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(count);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Prints the events as text
+    private static class TextSink implements TraceRing.Sink {
+        final PrintStream out;
+
+        TextSink(PrintStream out) {
+            this.out = out;
+        }
+
+        public void accept(byte[] buffer, int offset, int length) {
+            TraceDecoder.print(ByteBuffer.wrap(buffer, offset, length), out, false);
+        }
+
+        public void dropped(long count) {
+            out.println("Dropped      " + count + " trace events");
+        }
+
+        public void flush() {
+            out.flush();
+        }
+
+        public void close() {
+            out.flush();
+        }
+    }
+}
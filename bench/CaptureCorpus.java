@@ -0,0 +1,36 @@
+import java.io.*;
+import java.nio.file.*;
+
+// Writes the response corpus the benchmarks in ParseBenchmarks run over. Each response is
+// produced by the MockDNSServer for the zones in bench/corpus.conf and saved in raw wire
+// format as bench/corpus/<name>.bin. Responses captured from real servers can be added to
+// the same directory in the same format.
+//
+//   java -cp .:bench/classes CaptureCorpus bench/corpus.conf bench/corpus
+
+public class CaptureCorpus {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java CaptureCorpus config outputDir");
+            return;
+        }
+        Path out = Paths.get(args[1]);
+        Files.createDirectories(out);
+        // port 0 gives every server its own ephemeral port; the servers are asked directly
+        try (MockHierarchy hierarchy = new MockHierarchy(args[0], 0)) {
+            capture(hierarchy, "127.0.0.1", "www.example.com", out.resolve("root-referral.bin"));
+            capture(hierarchy, "127.0.0.2", "www.example.com", out.resolve("tld-referral.bin"));
+            capture(hierarchy, "127.0.0.3", "big.example.com", out.resolve("large-answer.bin"));
+            capture(hierarchy, "127.0.0.3", "c1.example.com", out.resolve("cname-chain.bin"));
+            capture(hierarchy, "127.0.0.3", "missing.example.com", out.resolve("nxdomain.bin"));
+        }
+    }
+
+    private static void capture(MockHierarchy hierarchy, String server, String name, Path file) throws IOException {
+        byte[] query = DNSTransport.encodeNewQuery(0x1234, name, 1).toByteArray();
+        byte[] response = hierarchy.getServer(server).answer(new DNSResponse(query, query.length), false);
+        Files.write(file, response);
+        System.out.println(file + " " + response.length + " bytes");
+    }
+}
@@ -0,0 +1,22 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of building a query packet, as done for every query the resolver sends: with an
+// OPT record offering DNSTransport.DEFAULT_EDNS_PAYLOAD bytes
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmarks {
+    public String fqdn = "www.example.com";
+
+    @Benchmark
+    public Object encodeNewQuery() throws Throwable {
+        return (Object) Handles.ENCODE_QUERY.invokeExact(0x1234, fqdn, 1, Handles.DEFAULT_EDNS_PAYLOAD);
+    }
+}
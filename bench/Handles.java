@@ -0,0 +1,58 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// The resolver classes are in the unnamed package. JMH will not generate benchmarks there
+// and named packages cannot import from it, so the benchmarks call into the resolver
+// through these method handles. They are static final, which lets the JIT inline them,
+// so a call costs the same as a direct one. Resolver objects are passed around as Object.
+
+final class Handles {
+    static final MethodHandle ENCODE_QUERY;         // (int id, String fqdn, int qtype, int ednsPayload) -> ByteArrayOutputStream
+    static final MethodHandle NEW_RESPONSE;         // (byte[] data, int len) -> DNSResponse
+    static final MethodHandle NEW_PARSER;           // () -> DNSResponse
+    static final MethodHandle PARSE;                // (DNSResponse, ByteBuffer) -> void
+    static final MethodHandle GET_QUERY_NAME;       // (DNSResponse, int offset) -> String
+    static final MethodHandle GET_RECORD_NAME;      // (DNSResponse, int index) -> String
+    static final MethodHandle GET_RECORD_COUNT;     // (DNSResponse) -> int
+    static final MethodHandle CREATE_RECORD;        // (DNSResponse, int index) -> ResponseRecord
+    static final MethodHandle GET_NEXT_REQUEST;     // (DNSResponse) -> ResponseRecord
+    static final int DEFAULT_EDNS_PAYLOAD;          // DNSTransport.DEFAULT_EDNS_PAYLOAD, offered in every query
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> transport = Class.forName("DNSTransport");
+            Class<?> response = Class.forName("DNSResponse");
+            Class<?> record = Class.forName("ResponseRecord");
+
+            ENCODE_QUERY = lookup.findStatic(transport, "encodeNewQuery",
+                    MethodType.methodType(java.io.ByteArrayOutputStream.class, int.class, String.class, int.class, int.class))
+                    .asType(MethodType.methodType(Object.class, int.class, String.class, int.class, int.class));
+            DEFAULT_EDNS_PAYLOAD = transport.getField("DEFAULT_EDNS_PAYLOAD").getInt(null);
+            NEW_RESPONSE = lookup.findConstructor(response, MethodType.methodType(void.class, byte[].class, int.class))
+                    .asType(MethodType.methodType(Object.class, byte[].class, int.class));
+            NEW_PARSER = lookup.findConstructor(response, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            PARSE = lookup.findVirtual(response, "parse", MethodType.methodType(void.class, java.nio.ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Object.class, java.nio.ByteBuffer.class));
+            GET_QUERY_NAME = lookup.findVirtual(response, "getQueryName", MethodType.methodType(String.class, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            GET_RECORD_NAME = lookup.findVirtual(response, "getRecordName", MethodType.methodType(String.class, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            GET_RECORD_COUNT = lookup.findVirtual(response, "getRecordCount", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+            CREATE_RECORD = lookup.findVirtual(response, "createResponseRecord", MethodType.methodType(record, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            GET_NEXT_REQUEST = lookup.findVirtual(response, "getNextRequest", MethodType.methodType(record))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Handles() {
+    }
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Cost of parsing responses and decoding their records, for every response in the
+// corpus. Each response is a raw packet in bench/corpus (or the directory named by the
+// corpus.dir system property); pick others with -p corpus=name.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmarks {
+    @Param({"root-referral", "tld-referral", "large-answer", "cname-chain", "nxdomain"})
+    public String corpus;
+
+    private byte[] packet;
+    private ByteBuffer packetBuffer;
+    private Object parser;              // a DNSResponse reused for every parse
+    private Object parsed;              // a DNSResponse holding the packet
+    private int recordCount;
+
+    @Setup
+    public void load() throws Throwable {
+        String dir = System.getProperty("corpus.dir", "bench/corpus");
+        packet = Files.readAllBytes(Paths.get(dir, corpus + ".bin"));
+        packetBuffer = ByteBuffer.wrap(packet);
+        parser = (Object) Handles.NEW_PARSER.invokeExact();
+        parsed = (Object) Handles.NEW_RESPONSE.invokeExact(packet, packet.length);
+        recordCount = (int) Handles.GET_RECORD_COUNT.invokeExact(parsed);
+    }
+
+    //The DNSResponse constructor: header and record index only
+    @Benchmark
+    public Object construct() throws Throwable {
+        return (Object) Handles.NEW_RESPONSE.invokeExact(packet, packet.length);
+    }
+
+    //Parsing into a DNSResponse that is reused, as the transport does
+    @Benchmark
+    public Object parseReused() throws Throwable {
+        Handles.PARSE.invokeExact(parser, packetBuffer);
+        return parser;
+    }
+
+    //The question name, which is never compressed
+    @Benchmark
+    public Object getQueryNameUncompressed() throws Throwable {
+        return (Object) Handles.GET_QUERY_NAME.invokeExact(parsed, 12);
+    }
+
+    //The owner name of the last record, which points back into the packet
+    @Benchmark
+    public Object getQueryNameCompressed() throws Throwable {
+        return (Object) Handles.GET_RECORD_NAME.invokeExact(parsed, recordCount - 1);
+    }
+
+    //Decoding every record of the response
+    @Benchmark
+    public void createResponseRecord(Blackhole bh) throws Throwable {
+        for (int i = 0; i < recordCount; i++) {
+            bh.consume((Object) Handles.CREATE_RECORD.invokeExact(parsed, i));
+        }
+    }
+
+    //Parsing a fresh response and picking the next step from it, as the resolver does for each hop
+    @Benchmark
+    public Object getNextRequest() throws Throwable {
+        Object response = (Object) Handles.NEW_RESPONSE.invokeExact(packet, packet.length);
+        return (Object) Handles.GET_NEXT_REQUEST.invokeExact(response);
+    }
+}